@@ -0,0 +1,77 @@
+package com.ojogaze.treasurehunt;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+
+/**
+ * GLES 2.0 context with an offscreen pbuffer surface, so rendering code can run without a
+ * GvrView or a window. Made current on the thread that creates it.
+ */
+public class OffscreenSurface {
+    public final int width;
+    public final int height;
+
+    private EGLDisplay display;
+    private EGLContext context;
+    private EGLSurface surface;
+
+    public OffscreenSurface(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int version[] = new int[2];
+        if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
+            throw new RuntimeException("eglInitialize failed " + EGL14.eglGetError());
+        }
+
+        // Same buffer sizes as the GvrView config in TreasureHuntActivity.
+        int configAttributes[] = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_DEPTH_SIZE, 16,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+                EGL14.EGL_NONE
+        };
+        EGLConfig configs[] = new EGLConfig[1];
+        int count[] = new int[1];
+        if (!EGL14.eglChooseConfig(display, configAttributes, 0, configs, 0, 1, count, 0)
+                || count[0] == 0) {
+            throw new RuntimeException("No pbuffer config " + EGL14.eglGetError());
+        }
+
+        int contextAttributes[] = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+        context = EGL14.eglCreateContext(
+                display, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+        int surfaceAttributes[] = {EGL14.EGL_WIDTH, width, EGL14.EGL_HEIGHT, height,
+                EGL14.EGL_NONE};
+        surface = EGL14.eglCreatePbufferSurface(display, configs[0], surfaceAttributes, 0);
+        if (context == null || context == EGL14.EGL_NO_CONTEXT
+                || surface == null || surface == EGL14.EGL_NO_SURFACE) {
+            throw new RuntimeException("Could not create pbuffer " + EGL14.eglGetError());
+        }
+        if (!EGL14.eglMakeCurrent(display, surface, surface, context)) {
+            throw new RuntimeException("eglMakeCurrent failed " + EGL14.eglGetError());
+        }
+    }
+
+    public void release() {
+        if (display != null) {
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroySurface(display, surface);
+            EGL14.eglDestroyContext(display, context);
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(display);
+        }
+        display = null;
+        context = null;
+        surface = null;
+    }
+}
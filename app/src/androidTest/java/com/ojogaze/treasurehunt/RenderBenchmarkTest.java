@@ -0,0 +1,278 @@
+package com.ojogaze.treasurehunt;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.ojogaze.treasurehunt.oogles20.CommandBuffer;
+import com.ojogaze.treasurehunt.oogles20.Mesh;
+import com.ojogaze.treasurehunt.oogles20.Model;
+import com.ojogaze.treasurehunt.oogles20.ParticleSystem;
+import com.ojogaze.treasurehunt.oogles20.Position;
+import com.ojogaze.treasurehunt.oogles20.RenderQueue;
+import com.ojogaze.treasurehunt.oogles20.RenderStats;
+import com.ojogaze.treasurehunt.oogles20.Shader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Renders a scripted scene through the Model and Shader pipeline into an offscreen pbuffer and
+ * reports frames per second and draw calls, so render path changes can be checked in CI.
+ * <p>
+ * <p>Needs no headset or phone, an emulator with a software renderer works:
+ * <pre>
+ *   emulator -avd ci -no-window -gpu swiftshader_indirect &amp;
+ *   ./gradlew connectedAndroidTest \
+ *       -Pandroid.testInstrumentationRunnerArguments.class=com.ojogaze.treasurehunt.RenderBenchmarkTest
+ * </pre>
+ * Results are logged and sent as instrumentation status, which "am instrument -r" prints.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RenderBenchmarkTest {
+    private static final String TAG = "RenderBenchmark";
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    private static final int WARMUP_FRAMES = 30;
+    private static final int FRAMES = 300;
+
+    private static final int CUBE_ROWS = 8;
+    private static final int CUBE_COLUMNS = 8;
+
+    private static final int PARTICLE_COUNTS[] = {0, 1024, 4096, 16384};
+    private static final int PARTICLE_BURSTS = 3;
+    // Scripted time, so every run sees the same bursts whatever the frame rate.
+    private static final long FRAME_NANOS = 16666667;
+    private static final int FRAMES_PER_BURST = 30;
+
+    private static final Position LIGHT_POS_IN_WORLD_SPACE =
+            new Position("Light", new float[]{0.0f, 2.0f, 0.0f, 1.0f});
+
+    private Context context;
+    private OffscreenSurface surface;
+
+    private final Model view = new Model("View");
+    private final Model perspective = new Model("Perspective");
+    private Model floor;
+    private Model cubes[];
+    private ParticleSystem particles;
+    private final RenderQueue queue = new RenderQueue(CUBE_ROWS * CUBE_COLUMNS + 1);
+    // Around a dozen commands per draw.
+    private final CommandBuffer commands = new CommandBuffer((CUBE_ROWS * CUBE_COLUMNS + 1) * 16);
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getTargetContext();
+        surface = new OffscreenSurface(WIDTH, HEIGHT);
+        GLES20.glViewport(0, 0, WIDTH, HEIGHT);
+        GLES20.glClearColor(0.1f, 0.1f, 0.1f, 0.5f);
+
+        Shader vertexShader = Shader.load(R.raw.light_vertex, GLES20.GL_VERTEX_SHADER, context);
+        Shader gridShader = Shader.load(R.raw.grid_fragment, GLES20.GL_FRAGMENT_SHADER, context);
+        Shader passthroughShader =
+                Shader.load(R.raw.passthrough_fragment, GLES20.GL_FRAGMENT_SHADER, context);
+
+        Mesh cubeMesh = Mesh.load(WorldLayoutData.CUBE_MESH, context);
+        cubeMesh.upload();
+        Mesh floorMesh = Mesh.load(WorldLayoutData.FLOOR_MESH, context);
+        floorMesh.upload();
+
+        floor = new Model("Floor");
+        floor.setMesh(floorMesh);
+        floor.setColor(WorldLayoutData.FLOOR_COLOR);
+        floor.attachShaders(new Shader[] {vertexShader, gridShader});
+        floor.translate(0, -20f, 0);
+        floor.setDepthPrepass(true);
+
+        cubes = new Model[CUBE_ROWS * CUBE_COLUMNS];
+        for (int i = 0; i < cubes.length; i++) {
+            cubes[i] = new Model("Cube" + i);
+            cubes[i].setMesh(cubeMesh);
+            cubes[i].setColor(WorldLayoutData.CUBE_COLORS[i % WorldLayoutData.CUBE_COLORS.length]);
+            if (i == 0) {
+                cubes[i].attachShaders(new Shader[] {vertexShader, passthroughShader});
+            } else {
+                cubes[i].shareProgram(cubes[0]);
+            }
+        }
+
+        queue.attachDepthShaders(new Shader[] {
+                Shader.load(R.raw.depth_vertex, GLES20.GL_VERTEX_SHADER, context),
+                Shader.load(R.raw.depth_fragment, GLES20.GL_FRAGMENT_SHADER, context)});
+
+        Matrix.perspectiveM(perspective.value, 0, 90f, (float) WIDTH / HEIGHT, 0.1f, 100f);
+    }
+
+    @After
+    public void tearDown() {
+        surface.release();
+    }
+
+    @Test
+    public void renderScriptedScene() {
+        for (int frame = 0; frame < WARMUP_FRAMES; frame++) {
+            drawFrame(frame);
+        }
+        GLES20.glFinish();
+        RenderStats.reset();
+
+        long start = System.nanoTime();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            drawFrame(WARMUP_FRAMES + frame);
+        }
+        // Make sure the GPU has finished, not just accepted the commands.
+        GLES20.glFinish();
+        long elapsed = System.nanoTime() - start;
+
+        float fps = FRAMES * 1e9f / elapsed;
+        report(fps);
+        // The floor is drawn twice, depth first.
+        assertEquals((cubes.length + 2) * FRAMES, RenderStats.getDrawCalls());
+    }
+
+    /**
+     * Counts how often each pixel is shaded with and without sorting and the floor's depth
+     * pre-pass, along with the time per frame of each.
+     */
+    @Test
+    public void measureOverdraw() {
+        String names[] = {"unsorted", "sorted", "prepass"};
+        Bundle results = new Bundle();
+        float overdraw[] = new float[names.length];
+        for (int mode = 0; mode < names.length; mode++) {
+            queue.setSortEnabled(mode > 0);
+            queue.setDepthPrepassEnabled(mode > 1);
+
+            queue.setCountingOverdraw(true);
+            GLES20.glClearColor(0, 0, 0, 0);
+            drawFrame(0);
+            overdraw[mode] = queue.readOverdraw(WIDTH, HEIGHT);
+            queue.setCountingOverdraw(false);
+            GLES20.glClearColor(0.1f, 0.1f, 0.1f, 0.5f);
+
+            for (int frame = 0; frame < WARMUP_FRAMES; frame++) {
+                drawFrame(frame);
+            }
+            GLES20.glFinish();
+            long start = System.nanoTime();
+            for (int frame = 0; frame < FRAMES; frame++) {
+                drawFrame(WARMUP_FRAMES + frame);
+            }
+            GLES20.glFinish();
+            float millis = (System.nanoTime() - start) / 1e6f / FRAMES;
+
+            Log.i(TAG, String.format("%s: %.2f fragments shaded per pixel, %.2f ms per frame",
+                    names[mode], overdraw[mode], millis));
+            results.putFloat(names[mode] + "_overdraw", overdraw[mode]);
+            results.putFloat(names[mode] + "_ms_per_frame", millis);
+        }
+        results.putString("renderer", GLES20.glGetString(GLES20.GL_RENDERER));
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+
+        // Sorting can only let the depth test reject more, and the pre-pass even more.
+        assertTrue(overdraw[1] <= overdraw[0]);
+        assertTrue(overdraw[2] <= overdraw[1]);
+    }
+
+    /**
+     * Measures what the explode effect adds to a frame, for increasing particle counts. Bursts
+     * start often enough that all pooled bursts are always alive.
+     */
+    @Test
+    public void renderParticles() {
+        particles = new ParticleSystem(PARTICLE_COUNTS[PARTICLE_COUNTS.length - 1],
+                PARTICLE_BURSTS, 0);
+        particles.upload();
+        particles.attachShaders(new Shader[] {
+                Shader.load(R.raw.particle_vertex, GLES20.GL_VERTEX_SHADER, context),
+                Shader.load(R.raw.particle_fragment, GLES20.GL_FRAGMENT_SHADER, context)});
+
+        Bundle results = new Bundle();
+        float baseMillis = 0;
+        for (int count : PARTICLE_COUNTS) {
+            particles.setParticleCount(count);
+            for (int frame = 0; frame < WARMUP_FRAMES; frame++) {
+                drawFrame(frame);
+            }
+            GLES20.glFinish();
+
+            long start = System.nanoTime();
+            for (int frame = 0; frame < FRAMES; frame++) {
+                drawFrame(WARMUP_FRAMES + frame);
+            }
+            GLES20.glFinish();
+            float millis = (System.nanoTime() - start) / 1e6f / FRAMES;
+
+            if (count == 0) {
+                baseMillis = millis;
+            }
+            Log.i(TAG, String.format("%d particles x %d bursts: %.2f ms per frame, +%.2f ms",
+                    count, PARTICLE_BURSTS, millis, millis - baseMillis));
+            results.putFloat("particles_" + count + "_ms_per_frame", millis);
+        }
+        results.putString("renderer", GLES20.glGetString(GLES20.GL_RENDERER));
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+
+    /**
+     * Draws one frame of the script: the camera turns slowly while the cubes spin in a grid.
+     */
+    private void drawFrame(int frame) {
+        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+
+        Matrix.setLookAtM(view.value, 0, 0.0f, 0.0f, 0.01f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
+        view.rotate(frame * 0.2f, 0, 1, 0);
+        Position lightPosInEyeSpace = view.multiply(LIGHT_POS_IN_WORLD_SPACE);
+
+        for (int i = 0; i < cubes.length; i++) {
+            float x = (i % CUBE_COLUMNS - CUBE_COLUMNS / 2f) * 3f;
+            float z = -8f - (i / CUBE_COLUMNS) * 3f;
+            cubes[i].translate(x, 0, z);
+            cubes[i].rotate(frame * 0.3f + i * 10, 0.5f, 0.5f, 1.0f);
+        }
+
+        // The floor is added first, as the most expensive order to draw it in.
+        queue.begin(view, perspective, lightPosInEyeSpace);
+        queue.add(floor);
+        for (Model cube : cubes) {
+            queue.add(cube);
+        }
+        commands.reset();
+        queue.record(commands);
+
+        if (particles != null) {
+            long nanos = frame * FRAME_NANOS;
+            if (frame % FRAMES_PER_BURST == 0) {
+                particles.emit(0, 0, -10f, WorldLayoutData.CUBE_COLOR_GOLD, nanos);
+            }
+            particles.record(commands, view, perspective, nanos);
+        }
+        commands.execute();
+    }
+
+    private void report(float fps) {
+        String renderer = GLES20.glGetString(GLES20.GL_RENDERER);
+        Log.i(TAG, String.format("%s: %.1f fps over %d frames, %s", renderer, fps, FRAMES,
+                RenderStats.format()));
+
+        Bundle results = new Bundle();
+        results.putString("renderer", renderer);
+        results.putFloat("fps", fps);
+        results.putInt("frames", FRAMES);
+        results.putInt("draw_calls_per_frame", RenderStats.getDrawCalls() / FRAMES);
+        results.putLong("vertex_bytes_per_frame", RenderStats.getVertexBytes() / FRAMES);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+}
@@ -0,0 +1,83 @@
+package com.ojogaze.treasurehunt;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.os.Process;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads resources on background threads so that neither the UI thread nor the GL thread waits
+ * for disk or decoders. The GL thread only picks up the results for upload and compilation.
+ */
+public class AssetLoader {
+    private static final String TAG = "AssetLoader";
+
+    private static final int THREADS = 3;
+
+    private final Context context;
+    private final ExecutorService executor;
+
+    public AssetLoader(Context context) {
+        this.context = context.getApplicationContext();
+        this.executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG + "-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Reads a raw text resource, such as shader source.
+     */
+    public Future<String> loadText(final int resId) {
+        return executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return Utils.readRawTextFile(resId, context);
+            }
+        });
+    }
+
+    /**
+     * Creates and prepares a media player for a raw sound resource.
+     */
+    public Future<MediaPlayer> loadSound(final int resId) {
+        return executor.submit(new Callable<MediaPlayer>() {
+            @Override
+            public MediaPlayer call() throws Exception {
+                return MediaPlayer.create(context, resId);
+            }
+        });
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    public Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
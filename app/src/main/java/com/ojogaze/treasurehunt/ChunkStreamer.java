@@ -0,0 +1,237 @@
+package com.ojogaze.treasurehunt;
+
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Streams in the world chunks around the user, so that startup does not wait for the whole
+ * world to be generated and uploaded.
+ * <p>
+ * <p>The user sits at the origin and only turns their head, the camera never moves. So the
+ * world is the fixed disc of chunks within reach, and once generated a chunk's vertex data is
+ * kept. Only chunks in front of the user are generated, nearest first, on a background
+ * executor and only a few at a time so that turning around does not queue up work that is
+ * stale by the time it runs. Generated chunks are uploaded to the GPU within a byte budget per
+ * frame, which keeps uploads from causing frame spikes.
+ * <p>
+ * <p>Chunks behind the user are not drawn, and their GPU buffers are deleted once they have
+ * stayed behind for a while, so GPU memory only holds what is around the view. Chunks are
+ * loaded and uploaded a little further around than they are drawn, so they are ready by the
+ * time they come into view, and stay drawn a little longer so that they do not flicker at the
+ * edge.
+ * <p>
+ * <p>A chunk that fails to generate is logged and left out of the world.
+ */
+public class ChunkStreamer {
+    private static final String TAG = "ChunkStreamer";
+
+    private static final float LOAD_RADIUS = 80.0f;
+
+    // Cosine of the angle from the view direction beyond which a chunk counts as behind.
+    private static final float LOAD_BEHIND_COS = -0.3f;
+    // How much further around chunks are loaded and kept drawn, see the class comment.
+    private static final float VIEW_MARGIN_COS = 0.2f;
+    // Frames a chunk has to stay out of the loaded area before its GPU buffers are deleted.
+    private static final int RELEASE_FRAMES = 120;
+    // Chunks this close are kept in any direction, the user may turn around at any moment.
+    private static final float NEAR_RADIUS = 1.5f * WorldGenerator.CHUNK_SIZE;
+
+    private static final int MAX_PENDING = 4;
+    private static final int UPLOAD_BUDGET_BYTES = 32 * 1024;
+
+    private final WorldGenerator generator;
+    private final ExecutorService executor;
+
+    private static class Slot {
+        // Generation never throws, failed chunks are null.
+        final Future<WorldGenerator.Chunk> future;
+        boolean drawn = false;
+        // Consecutive updates the chunk was out of the loaded area.
+        int outFrames = 0;
+
+        Slot(Future<WorldGenerator.Chunk> future) {
+            this.future = future;
+        }
+    }
+
+    // Keyed by packed chunk coordinates.
+    private final LongSparseArray<Slot> chunks = new LongSparseArray<>();
+    private final List<WorldGenerator.Chunk> visible = new ArrayList<>();
+
+    private float forwardX;
+    private float forwardZ;
+
+    public ChunkStreamer(WorldGenerator generator, ExecutorService executor) {
+        this.generator = generator;
+        this.executor = executor;
+    }
+
+    /**
+     * Requests and uploads chunks for the user's view direction. Call once per frame on the GL
+     * thread.
+     *
+     * @param forwardX View direction, need not be normalized.
+     * @param forwardZ View direction, need not be normalized.
+     */
+    public void update(float forwardX, float forwardZ) {
+        float length = (float) Math.sqrt(forwardX * forwardX + forwardZ * forwardZ);
+        // Looking straight up or down, nothing counts as behind.
+        this.forwardX = length > 0.01f ? forwardX / length : 0;
+        this.forwardZ = length > 0.01f ? forwardZ / length : 0;
+
+        int pending = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            if (!chunks.valueAt(i).future.isDone()) {
+                pending++;
+            }
+        }
+        int uploadBudget = UPLOAD_BUDGET_BYTES;
+
+        // Walk square rings outwards from the user's chunk, so nearer chunks come first.
+        int rings = (int) Math.ceil(LOAD_RADIUS / WorldGenerator.CHUNK_SIZE);
+        for (int ring = 0; ring <= rings; ring++) {
+            for (int chunkZ = -ring; chunkZ <= ring; chunkZ++) {
+                int step = Math.abs(chunkZ) == ring ? 1 : 2 * ring;
+                for (int chunkX = -ring; chunkX <= ring; chunkX += step) {
+                    if (!inView(chunkX, chunkZ, LOAD_BEHIND_COS - VIEW_MARGIN_COS)) {
+                        continue;
+                    }
+                    long key = key(chunkX, chunkZ);
+                    Slot slot = chunks.get(key);
+                    if (slot == null) {
+                        if (pending < MAX_PENDING) {
+                            chunks.put(key, new Slot(generate(chunkX, chunkZ)));
+                            pending++;
+                        }
+                    } else if (uploadBudget > 0) {
+                        WorldGenerator.Chunk chunk = getChunk(slot.future);
+                        if (chunk != null && !chunk.terrain.isUploaded()) {
+                            // Always allow one upload, however big, so that nothing starves.
+                            chunk.terrain.upload();
+                            uploadBudget -= chunk.terrain.getSizeBytes();
+                        }
+                    }
+                }
+            }
+        }
+
+        visible.clear();
+        for (int i = 0; i < chunks.size(); i++) {
+            Slot slot = chunks.valueAt(i);
+            WorldGenerator.Chunk chunk = getChunk(slot.future);
+            if (chunk == null) {
+                continue;
+            }
+            // Harder to leave the view than to enter it, see the class comment.
+            slot.drawn = inView(chunk.x, chunk.z,
+                    slot.drawn ? LOAD_BEHIND_COS - VIEW_MARGIN_COS : LOAD_BEHIND_COS);
+            if (slot.drawn && chunk.terrain.isUploaded()) {
+                visible.add(chunk);
+            }
+
+            if (inView(chunk.x, chunk.z, LOAD_BEHIND_COS - VIEW_MARGIN_COS)) {
+                slot.outFrames = 0;
+            } else if (++slot.outFrames >= RELEASE_FRAMES) {
+                // Uploaded again by the loop above once it comes back.
+                chunk.terrain.deleteUpload();
+            }
+        }
+    }
+
+    /**
+     * @return Chunks ready to draw, as of the last {@link #update}. Only valid on the GL thread
+     * until the next update.
+     */
+    public List<WorldGenerator.Chunk> getVisibleChunks() {
+        return visible;
+    }
+
+    /**
+     * Forgets all GPU buffers after the GL context was lost, chunks will be uploaded again.
+     */
+    public void onContextLost() {
+        for (int i = 0; i < chunks.size(); i++) {
+            WorldGenerator.Chunk chunk = getChunk(chunks.valueAt(i).future);
+            if (chunk != null) {
+                chunk.terrain.onContextLost();
+            }
+        }
+        visible.clear();
+    }
+
+    /**
+     * Drops all chunks. Must be called on the GL thread, or after the context is gone.
+     */
+    public void clear() {
+        for (int i = 0; i < chunks.size(); i++) {
+            release(chunks.valueAt(i).future);
+        }
+        chunks.clear();
+        visible.clear();
+    }
+
+    /**
+     * @param minCos Cosine of the largest angle from the view direction that counts as in view.
+     * @return Whether the chunk is within reach and in view of the user, who is at the origin.
+     */
+    private boolean inView(int chunkX, int chunkZ, float minCos) {
+        float dx = (chunkX + 0.5f) * WorldGenerator.CHUNK_SIZE;
+        float dz = (chunkZ + 0.5f) * WorldGenerator.CHUNK_SIZE;
+        float distance = (float) Math.sqrt(dx * dx + dz * dz);
+        if (distance > LOAD_RADIUS) {
+            return false;
+        }
+        return distance < NEAR_RADIUS
+                || (dx * forwardX + dz * forwardZ) >= minCos * distance;
+    }
+
+    private Future<WorldGenerator.Chunk> generate(final int chunkX, final int chunkZ) {
+        return executor.submit(new Callable<WorldGenerator.Chunk>() {
+            @Override
+            public WorldGenerator.Chunk call() {
+                try {
+                    return generator.generate(chunkX, chunkZ);
+                } catch (RuntimeException e) {
+                    // Not retried, generation is deterministic and would fail again.
+                    Log.e(TAG, "Chunk " + chunkX + "," + chunkZ + " failed to generate", e);
+                    return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The generated chunk, or null if still generating or failed. Never blocks.
+     */
+    private static WorldGenerator.Chunk getChunk(Future<WorldGenerator.Chunk> future) {
+        if (!future.isDone() || future.isCancelled()) {
+            return null;
+        }
+        try {
+            return Utils.await(future);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void release(Future<WorldGenerator.Chunk> future) {
+        if (!future.isDone()) {
+            future.cancel(false);
+        } else {
+            WorldGenerator.Chunk chunk = getChunk(future);
+            if (chunk != null) {
+                chunk.terrain.deleteUpload();
+            }
+        }
+    }
+
+    private static long key(int chunkX, int chunkZ) {
+        return (long) chunkX << 32 | (chunkZ & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,80 @@
+package com.ojogaze.treasurehunt;
+
+import android.view.Choreographer;
+
+/**
+ * Models display timing from measured vsync intervals so that frames can be rendered for the
+ * moment they reach the screen instead of the moment they are started.
+ * <p>
+ * <p>Vsync timestamps come from {@link Choreographer}, which has to run on a looper thread, while
+ * predictions are made on the GL thread, so the shared state is kept in volatile fields.
+ */
+public class FramePacer implements Choreographer.FrameCallback {
+    private static final String TAG = "FramePacer";
+
+    private static final long DEFAULT_VSYNC_NANOS = 1000 * 1000 * 1000 / 60;
+
+    // Frames rendered now are scanned out after this many vsyncs (render + compose).
+    private static final int PIPELINE_DEPTH = 2;
+
+    // Weight of a new sample in the running average of the vsync interval.
+    private static final float SMOOTHING = 0.05f;
+
+    private volatile long lastVsyncNanos = 0;
+    private volatile long vsyncIntervalNanos = DEFAULT_VSYNC_NANOS;
+    private volatile boolean running = false;
+
+    /**
+     * Starts listening to vsync. Must be called from a thread with a looper.
+     */
+    public void start() {
+        if (!running) {
+            running = true;
+            lastVsyncNanos = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    public void stop() {
+        if (running) {
+            running = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) {
+            return;
+        }
+        if (lastVsyncNanos != 0) {
+            long interval = frameTimeNanos - lastVsyncNanos;
+            // Skipped callbacks show up as multiples of the interval, only average single ones.
+            if (interval > 0 && interval < vsyncIntervalNanos * 3 / 2) {
+                vsyncIntervalNanos += (long) ((interval - vsyncIntervalNanos) * SMOOTHING);
+            }
+        }
+        lastVsyncNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public long getVsyncIntervalNanos() {
+        return vsyncIntervalNanos;
+    }
+
+    /**
+     * Predicts when a frame started at the given time will be scanned out.
+     *
+     * @param nowNanos Current time from {@link System#nanoTime()}, same clock as vsync.
+     * @return Predicted scanout time in nanoseconds.
+     */
+    public long getScanoutTimeNanos(long nowNanos) {
+        long interval = vsyncIntervalNanos;
+        long vsync = lastVsyncNanos;
+        if (vsync == 0 || vsync > nowNanos) {
+            return nowNanos + interval * PIPELINE_DEPTH;
+        }
+        long nextVsync = vsync + ((nowNanos - vsync) / interval + 1) * interval;
+        return nextVsync + interval * (PIPELINE_DEPTH - 1);
+    }
+}
@@ -0,0 +1,234 @@
+package com.ojogaze.treasurehunt;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lowers the frame rate and animation tick rate when the phone is hot or short of battery, and
+ * skips frames that would look the same as the last one.
+ * <p>
+ * <p>The platform has no thermal API at this SDK level, so battery temperature stands in for it,
+ * with battery level and power save mode for power. Each level caps the frame rate and sets how
+ * often animations advance. Frames are skipped by waiting on the GL thread before starting them.
+ * That only works with async reprojection, which keeps showing the last frame corrected for head
+ * motion; without it, only the animation tick rate changes.
+ * <p>
+ * <p>A frame is considered static when the head has barely turned since the last one and no
+ * animation has advanced. The next frame then waits for the next animation tick, or a while if
+ * nothing is animating at all. {@link #wake()} cuts a wait short, for input.
+ */
+public class FrameScheduler extends BroadcastReceiver {
+    private static final String TAG = "FrameScheduler";
+
+    public static final int NORMAL = 0;
+    public static final int CONSERVE = 1;
+    public static final int HOT = 2;
+
+    private static final String LEVEL_NAMES[] = {"normal", "conserve", "hot"};
+
+    // Minimum time between frames and between animation ticks, per level. 0 for every frame.
+    private static final long FRAME_NANOS[] = {0, 1000000000L / 30, 1000000000L / 20};
+    private static final long TICK_NANOS[] = {0, 1000000000L / 30, 1000000000L / 10};
+
+    // Battery temperature, in tenths of a degree, to enter and leave the hot level.
+    private static final int HOT_TEMPERATURE = 420;
+    private static final int COOL_TEMPERATURE = 400;
+    private static final int LOW_BATTERY_PERCENT = 20;
+
+    // Frame interval when nothing changes at all, reprojection covers the head motion.
+    private static final long STATIC_FRAME_NANOS = 100 * 1000 * 1000;
+    // Head turns smaller than this, in radians, between frames do not count as motion.
+    private static final float STATIC_ROTATION = 0.0035f;
+    private static final float STATIC_COS = (float) Math.cos(STATIC_ROTATION / 2);
+
+    private final Context context;
+    private final PowerManager powerManager;
+    private final BatteryManager batteryManager;
+    private boolean throttle = false;
+
+    private volatile int level = NORMAL;
+    private int temperature = 0;
+    private int batteryPercent = 100;
+    private boolean charging = false;
+
+    private volatile Thread waiting;
+    private volatile boolean woken = false;
+
+    // Only used on the GL thread. Ticks are in scanout time, frames in System.nanoTime().
+    private long lastTickNanos = 0;
+    private long scanoutLeadNanos = 0;
+    private long nextFrameNanos = 0;
+    private final float lastQuaternion[] = {0, 0, 0, 1};
+
+    private int frames = 0;
+    private long skippedNanos = 0;
+
+    public FrameScheduler(Context context) {
+        this.context = context.getApplicationContext();
+        this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.batteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+    }
+
+    /**
+     * @param enabled Whether frames can be skipped, only when async reprojection is on.
+     */
+    public void setThrottle(boolean enabled) {
+        throttle = enabled;
+    }
+
+    /**
+     * Starts following battery and power save state. Must be called on the UI thread.
+     */
+    public void start() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        // Battery changes are sticky, so this returns the current state right away.
+        Intent battery = context.registerReceiver(this, filter);
+        if (battery != null) {
+            onReceive(context, battery);
+        }
+    }
+
+    public void stop() {
+        context.unregisterReceiver(this);
+        wake();
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+            temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+            batteryPercent = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, scale) * 100
+                    / Math.max(scale, 1);
+            charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+        updateLevel();
+    }
+
+    private void updateLevel() {
+        int newLevel;
+        if (temperature >= HOT_TEMPERATURE
+                || (level == HOT && temperature > COOL_TEMPERATURE)) {
+            newLevel = HOT;
+        } else if (powerManager.isPowerSaveMode()
+                || (!charging && batteryPercent < LOW_BATTERY_PERCENT)) {
+            newLevel = CONSERVE;
+        } else {
+            newLevel = NORMAL;
+        }
+        if (newLevel != level) {
+            Log.i(TAG, String.format("Level %s, battery %d%% at %.1fC%s", LEVEL_NAMES[newLevel],
+                    batteryPercent, temperature / 10f, charging ? " charging" : ""));
+            level = newLevel;
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Waits until the next frame is due. Call at the start of each frame on the GL thread.
+     */
+    public void waitForFrame() {
+        if (!throttle) {
+            return;
+        }
+        long start = System.nanoTime();
+        waiting = Thread.currentThread();
+        while (!woken) {
+            long remaining = nextFrameNanos - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+        woken = false;
+        waiting = null;
+        skippedNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Ends a wait in {@link #waitForFrame()} early, so that input shows up right away. Can be
+     * called from any thread.
+     */
+    public void wake() {
+        woken = true;
+        Thread thread = waiting;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Gets how far animations advance this frame, at the tick rate of the current level.
+     *
+     * @param nowNanos Time the frame started, from {@link System#nanoTime()}.
+     * @param scanoutNanos Time the frame is animated for, when it shows on the display.
+     * @return Nanoseconds since the last tick, or 0 if this frame is not a tick.
+     */
+    public long getAnimationStep(long nowNanos, long scanoutNanos) {
+        scanoutLeadNanos = scanoutNanos - nowNanos;
+        if (lastTickNanos == 0 || scanoutNanos < lastTickNanos) {
+            lastTickNanos = scanoutNanos;
+            return 0;
+        }
+        long step = scanoutNanos - lastTickNanos;
+        if (step < TICK_NANOS[level]) {
+            return 0;
+        }
+        lastTickNanos = scanoutNanos;
+        return step;
+    }
+
+    /**
+     * Schedules the next frame, given what changed in this one. Call once per frame on the GL
+     * thread, after {@link #getAnimationStep(long, long)}.
+     *
+     * @param nowNanos Time the frame started.
+     * @param headQuaternion Head rotation of this frame.
+     * @param animating Whether anything moves over time, whether or not it ticked this frame.
+     */
+    public void onFrame(long nowNanos, float headQuaternion[], boolean animating) {
+        float dot = Math.abs(headQuaternion[0] * lastQuaternion[0]
+                + headQuaternion[1] * lastQuaternion[1] + headQuaternion[2] * lastQuaternion[2]
+                + headQuaternion[3] * lastQuaternion[3]);
+        boolean headStill = dot >= STATIC_COS;
+        System.arraycopy(headQuaternion, 0, lastQuaternion, 0, 4);
+
+        int current = level;
+        long next = nowNanos + FRAME_NANOS[current];
+        if (headStill) {
+            // Frames before the next tick would only repeat this one. The tick is due at scanout,
+            // so the frame for it starts the same lead earlier.
+            next = Math.max(next, animating
+                    ? lastTickNanos - scanoutLeadNanos + TICK_NANOS[current]
+                    : nowNanos + STATIC_FRAME_NANOS);
+        }
+        nextFrameNanos = next;
+        frames++;
+    }
+
+    /**
+     * @return Frames, time spent waiting and battery current since the last call, for logs.
+     */
+    public String formatStats() {
+        int currentMicroAmps = batteryManager != null ? batteryManager.getIntProperty(
+                BatteryManager.BATTERY_PROPERTY_CURRENT_NOW) : 0;
+        String stats = String.format("%s, %d frames, %.1fs waiting, battery %d%% %.1fC %dmA",
+                LEVEL_NAMES[level], frames, skippedNanos / 1e9f, batteryPercent,
+                temperature / 10f, currentMicroAmps / 1000);
+        frames = 0;
+        skippedNanos = 0;
+        return stats;
+    }
+}
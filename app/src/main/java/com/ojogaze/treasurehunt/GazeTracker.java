@@ -0,0 +1,193 @@
+package com.ojogaze.treasurehunt;
+
+import android.util.Pair;
+
+import com.ojogaze.treasurehunt.oogles20.Model;
+import com.ojogaze.treasurehunt.oogles20.Position;
+
+import care.dovetail.ojo.EogProcessor;
+import care.dovetail.ojo.bluetooth.EogDevice;
+
+/**
+ * Fuses head orientation with the continuous EOG eye position into a single gaze ray.
+ * <p>
+ * <p>Head pose from GVR is already accurate, so it is used as is. The eye-in-head angles come
+ * from the latest EOG sample normalized by the processor's current range, and run through an
+ * alpha-beta filter (a steady state Kalman filter with a constant velocity model) which smooths
+ * the noisy signal and extrapolates it to the time the frame will be displayed.
+ * <p>
+ * <p>The filter steps once per EOG sample, so its gains hold however fast frames are drawn. The
+ * device does not notify its observers in any set order, so the tracker takes the place of the
+ * observer that updates the processor, passes each sample on to it and only then reads the
+ * processor.
+ */
+public class GazeTracker implements EogDevice.Observer {
+    private static final String TAG = "GazeTracker";
+
+    // Eye rotation, in radians, that corresponds to the edge of the EOG processor range.
+    private static final float EYE_YAW_RANGE = 0.35f;
+    private static final float EYE_PITCH_RANGE = 0.25f;
+
+    // Filter gains, tuned for the roughly 60 samples per second of the EOG device.
+    private static final float ALPHA = 0.35f;
+    private static final float BETA = 0.05f;
+
+    // How quickly the eye estimate falls back to straight ahead when the signal is bad.
+    private static final float BAD_SIGNAL_DECAY = 0.9f;
+
+    // Never extrapolate further than this, a stale estimate is better than a wild one.
+    private static final float MAX_PREDICTION_SECONDS = 0.1f;
+
+    private final EogDevice.Observer upstream;
+    private final EogProcessor processor;
+
+    private final Axis yaw = new Axis();
+    private final Axis pitch = new Axis();
+
+    private final Model headView = new Model("GazeHeadView");
+    private long lastSampleNanos = 0;
+    private long displayTimeNanos = 0;
+
+    /**
+     * @param upstream Observer that updates the processor, to be notified through the tracker
+     *                 instead of by the device.
+     */
+    public GazeTracker(EogDevice.Observer upstream, EogProcessor processor) {
+        this.upstream = upstream;
+        this.processor = processor;
+    }
+
+    /**
+     * Updates the gaze with a new head pose.
+     *
+     * @param headView Head view matrix for this frame.
+     * @param displayTimeNanos Expected time at which this frame will be displayed.
+     */
+    public synchronized void update(float[] headView, long displayTimeNanos) {
+        System.arraycopy(headView, 0, this.headView.value, 0, 16);
+        this.displayTimeNanos = displayTimeNanos;
+    }
+
+    @Override
+    public void onConnect(String address) {
+        upstream.onConnect(address);
+    }
+
+    @Override
+    public void onDisconnect(String address) {
+        upstream.onDisconnect(address);
+        synchronized (this) {
+            // Look straight ahead without a signal, and start over with the next connection
+            // rather than step across the gap.
+            yaw.update(0, 0);
+            pitch.update(0, 0);
+            lastSampleNanos = 0;
+        }
+    }
+
+    /**
+     * Updates the processor with the sample, through the upstream observer, then steps the eye
+     * filter with the result.
+     */
+    @Override
+    public void onNewValues(int channel1, int channel2) {
+        // Not under the lock, the processor notifies eye event observers that may call back in.
+        upstream.onNewValues(channel1, channel2);
+        step();
+    }
+
+    private synchronized void step() {
+        long nowNanos = System.nanoTime();
+        float dt = lastSampleNanos == 0 ? 0 : (nowNanos - lastSampleNanos) / 1e9f;
+        lastSampleNanos = nowNanos;
+
+        if (processor.isGoodSignal()) {
+            yaw.update(normalize(processor.horizontal(), processor.horizontalRange())
+                    * EYE_YAW_RANGE, dt);
+            pitch.update(normalize(processor.vertical(), processor.verticalRange())
+                    * EYE_PITCH_RANGE, dt);
+        } else {
+            yaw.decay();
+            pitch.decay();
+        }
+    }
+
+    /**
+     * @return Eye-in-head yaw in radians, extrapolated to the display time. Positive is right.
+     */
+    public synchronized float getEyeYaw() {
+        return yaw.predict(getLeadSeconds());
+    }
+
+    /**
+     * @return Eye-in-head pitch in radians, extrapolated to the display time. Positive is up.
+     */
+    public synchronized float getEyePitch() {
+        return pitch.predict(getLeadSeconds());
+    }
+
+    /**
+     * Checks if the fused gaze ray falls within the given angular limits around the model.
+     */
+    public synchronized boolean isLookingAt(Model model, float yawLimit, float pitchLimit) {
+        // Convert object space to head space, then measure angles from the gaze instead of
+        // from the head forward vector.
+        Position target = headView.multiply(model).getPosition();
+        float targetPitch = (float) Math.atan2(target.value[1], -target.value[2]);
+        float targetYaw = (float) Math.atan2(target.value[0], -target.value[2]);
+
+        return Math.abs(targetPitch - getEyePitch()) < pitchLimit
+                && Math.abs(targetYaw - getEyeYaw()) < yawLimit;
+    }
+
+    private float getLeadSeconds() {
+        float lead = (displayTimeNanos - lastSampleNanos) / 1e9f;
+        return Math.min(Math.max(lead, 0), MAX_PREDICTION_SECONDS);
+    }
+
+    /**
+     * Maps the latest sample to -1..1 within the current signal range.
+     */
+    private static float normalize(int values[], Pair<Integer, Integer> range) {
+        if (values == null || values.length == 0 || range == null
+                || range.first == null || range.second == null) {
+            return 0;
+        }
+        float half = (range.second - range.first) / 2f;
+        if (half <= 0) {
+            return 0;
+        }
+        float center = (range.second + range.first) / 2f;
+        float value = (values[values.length - 1] - center) / half;
+        return Math.min(Math.max(value, -1f), 1f);
+    }
+
+    /**
+     * Alpha-beta filter for one rotation axis.
+     */
+    private static class Axis {
+        private float angle = 0;
+        private float rate = 0;
+
+        void update(float measured, float dt) {
+            if (dt <= 0) {
+                angle = measured;
+                rate = 0;
+                return;
+            }
+            float predicted = angle + rate * dt;
+            float residual = measured - predicted;
+            angle = predicted + ALPHA * residual;
+            rate = rate + (BETA / dt) * residual;
+        }
+
+        void decay() {
+            angle *= BAD_SIGNAL_DECAY;
+            rate = 0;
+        }
+
+        float predict(float seconds) {
+            return angle + rate * seconds;
+        }
+    }
+}
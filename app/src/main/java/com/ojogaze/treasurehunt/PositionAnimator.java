@@ -0,0 +1,62 @@
+package com.ojogaze.treasurehunt;
+
+/**
+ * Moves a position smoothly to a new target over a fixed duration.
+ * <p>
+ * <p>Movements are scheduled with the time they were requested and sampled at any later time,
+ * typically the predicted scanout time of the frame being drawn.
+ */
+public class PositionAnimator {
+    private final long durationNanos;
+
+    private final float from[] = new float[3];
+    private final float to[] = new float[3];
+    private long startNanos = 0;
+
+    public PositionAnimator(float x, float y, float z, long durationNanos) {
+        this.durationNanos = durationNanos;
+        jumpTo(x, y, z);
+    }
+
+    /**
+     * Starts moving from wherever the position is at the given time towards the new target.
+     */
+    public synchronized void moveTo(float x, float y, float z, long nowNanos) {
+        get(nowNanos, from);
+        to[0] = x;
+        to[1] = y;
+        to[2] = z;
+        startNanos = nowNanos;
+    }
+
+    /**
+     * Sets the position immediately without animation.
+     */
+    public synchronized void jumpTo(float x, float y, float z) {
+        from[0] = to[0] = x;
+        from[1] = to[1] = y;
+        from[2] = to[2] = z;
+        startNanos = 0;
+    }
+
+    public synchronized boolean isMoving(long timeNanos) {
+        return startNanos != 0 && timeNanos - startNanos < durationNanos;
+    }
+
+    /**
+     * Samples the position at the given time.
+     *
+     * @param timeNanos Time from {@link System#nanoTime()}, may be in the future.
+     * @param position Receives x, y and z.
+     */
+    public synchronized void get(long timeNanos, float position[]) {
+        float t = durationNanos <= 0 || startNanos == 0
+                ? 1f : (float) (timeNanos - startNanos) / durationNanos;
+        t = Math.min(Math.max(t, 0f), 1f);
+        // Ease out, fast start and gentle stop.
+        float eased = 1f - (1f - t) * (1f - t);
+        for (int i = 0; i < 3; i++) {
+            position[i] = from[i] + (to[i] - from[i]) * eased;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.ojogaze.treasurehunt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the session logs written by {@link SessionRecorder}, and a reader for them.
+ * <p>
+ * <p>The file starts with a header of int magic ("OJOL"), short version, short reserved,
+ * long wall clock millis and long {@link System#nanoTime()} at start. Then records, each a
+ * byte type, a long nanoTime and a payload that depends on the type, all little endian:
+ * <ul>
+ *     <li>{@link #HEAD_POSE}: four floats, the head rotation quaternion x, y, z, w.</li>
+ *     <li>{@link #GESTURE}: byte index in {@link #GESTURES} or -1, short number of events.</li>
+ *     <li>{@link #CALIBRATION}: int new saccade amplitude for the direction gestures.</li>
+ *     <li>{@link #FRAME}: int nanos since the previous frame, int nanos until scanout.</li>
+ *     <li>{@link #DROPPED}: int number of samples dropped since the last such record.</li>
+ * </ul>
+ * Plain Java, shared with the SessionLogDecoder tool that reads the logs on a desktop JVM.
+ */
+public final class SessionLog {
+    public static final int MAGIC = 'O' | 'J' << 8 | 'O' << 16 | 'L' << 24;
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 24;
+
+    public static final byte HEAD_POSE = 1;
+    public static final byte GESTURE = 2;
+    public static final byte CALIBRATION = 3;
+    public static final byte FRAME = 4;
+    public static final byte DROPPED = 5;
+
+    // Type and time.
+    public static final int RECORD_HEADER_SIZE = 9;
+    // Largest payload, of a head pose.
+    public static final int MAX_RECORD_SIZE = RECORD_HEADER_SIZE + 16;
+
+    public static final String GESTURES[] =
+            {"left", "right", "blink", "multiblink", "fixation", "explode"};
+
+    /**
+     * Receives the contents of a log, in the order written.
+     */
+    public interface Visitor {
+        void onStart(long startMillis, long startNanos);
+
+        void onHeadPose(long nanos, float x, float y, float z, float w);
+
+        /**
+         * @param gesture Name of the gesture, or null if unknown.
+         */
+        void onGesture(long nanos, String gesture, int eventCount);
+
+        void onCalibration(long nanos, int amplitude);
+
+        void onFrame(long nanos, int frameNanos, int scanoutLeadNanos);
+
+        void onDropped(long nanos, int count);
+    }
+
+    private SessionLog() {
+    }
+
+    /**
+     * @return Index of the gesture in {@link #GESTURES}, or -1.
+     */
+    public static int indexOf(String gesture) {
+        for (int i = 0; i < GESTURES.length; i++) {
+            if (GESTURES[i].equals(gesture)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Bytes after the record header for the type, or -1 if unknown.
+     */
+    public static int payloadSize(byte type) {
+        switch (type) {
+            case HEAD_POSE:
+                return 16;
+            case GESTURE:
+                return 3;
+            case CALIBRATION:
+            case DROPPED:
+                return 4;
+            case FRAME:
+                return 8;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Reads a log. A record cut short at the end, as left by a crash, ends the log.
+     *
+     * @param name Name for error messages.
+     */
+    public static void read(String name, ByteBuffer buffer, Visitor visitor) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException(name + " is not a session log");
+        }
+        short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IOException(name + " has unsupported version " + version);
+        }
+        buffer.getShort();
+        long startMillis = buffer.getLong();
+        long startNanos = buffer.getLong();
+        visitor.onStart(startMillis, startNanos);
+
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int position = buffer.position();
+            byte type = buffer.get();
+            long nanos = buffer.getLong();
+            int size = payloadSize(type);
+            if (size < 0) {
+                // Records have no length, nothing after an unknown type can be trusted.
+                throw new IOException(String.format("%s: unknown record type %d at %d",
+                        name, type, position));
+            }
+            if (buffer.remaining() < size) {
+                return;
+            }
+            switch (type) {
+                case HEAD_POSE:
+                    visitor.onHeadPose(nanos, buffer.getFloat(), buffer.getFloat(),
+                            buffer.getFloat(), buffer.getFloat());
+                    break;
+                case GESTURE:
+                    int gesture = buffer.get();
+                    int events = buffer.getShort();
+                    visitor.onGesture(nanos, gesture >= 0 && gesture < GESTURES.length
+                            ? GESTURES[gesture] : null, events);
+                    break;
+                case CALIBRATION:
+                    visitor.onCalibration(nanos, buffer.getInt());
+                    break;
+                case FRAME:
+                    visitor.onFrame(nanos, buffer.getInt(), buffer.getInt());
+                    break;
+                case DROPPED:
+                    visitor.onDropped(nanos, buffer.getInt());
+                    break;
+            }
+        }
+    }
+}
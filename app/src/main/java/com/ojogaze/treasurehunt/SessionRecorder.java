@@ -0,0 +1,327 @@
+package com.ojogaze.treasurehunt;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.ojogaze.treasurehunt.SessionLog.CALIBRATION;
+import static com.ojogaze.treasurehunt.SessionLog.DROPPED;
+import static com.ojogaze.treasurehunt.SessionLog.FRAME;
+import static com.ojogaze.treasurehunt.SessionLog.GESTURE;
+import static com.ojogaze.treasurehunt.SessionLog.HEAD_POSE;
+
+/**
+ * Records head pose, gestures, calibration changes and frame timings of a session into a compact
+ * append only binary log, see {@link SessionLog}, for reconstructing study sessions without
+ * logcat.
+ * <p>
+ * <p>Recording never blocks or allocates: samples go into a preallocated lock free ring buffer
+ * and a background thread encodes them and writes them to the file in batches. If the writer
+ * falls behind, new samples are dropped and counted rather than stalling a frame.
+ * <p>
+ * <p>Samples are ignored while stopped, except for the calibration, which is kept and written
+ * at the start of every session so that each log can be read on its own.
+ * <p>
+ * <p>If writing fails, recording stops and the samples of that session are discarded, so that
+ * they do not end up in the next session's file.
+ */
+public class SessionRecorder {
+    private static final String TAG = "SessionRecorder";
+
+    private static final int CAPACITY = 4096; // Power of two.
+    private static final int VALUES_PER_SAMPLE = 4;
+
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final long WRITER_INTERVAL_NANOS = 100 * 1000 * 1000;
+
+    // Each publish adds CAPACITY to a slot's sequence, telling the writer which lap filled it.
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private volatile long consumed = 0;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final byte types[] = new byte[CAPACITY];
+    private final long times[] = new long[CAPACITY];
+    private final float values[] = new float[CAPACITY * VALUES_PER_SAMPLE];
+    private final int ints[] = new int[CAPACITY * 2];
+
+    // Latest saccade amplitude, or -1 before the first calibration.
+    private volatile int calibration = -1;
+
+    private final File dir;
+    private File file;
+    private volatile boolean running = false;
+    private Writer writer;
+
+    /**
+     * @param dir Directory for the logs, each start begins a new file.
+     */
+    public SessionRecorder(File dir) {
+        this.dir = dir;
+    }
+
+    public synchronized File getFile() {
+        return file;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        file = new File(dir, new SimpleDateFormat("'session-'yyyyMMdd-HHmmss'.ojolog'", Locale.US)
+                .format(new Date()));
+        // The previous session's writer may still be finishing its file.
+        writer = new Writer(file, writer != null ? writer.thread : null);
+        running = true;
+        writer.thread.start();
+    }
+
+    /**
+     * Stops recording. Returns right away, the writer finishes the samples recorded so far and
+     * closes the file in the background.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        writer.end = claimed.get();
+        LockSupport.unpark(writer.thread);
+    }
+
+    /**
+     * Waits until the writer has finished the file of the last stopped session.
+     */
+    void awaitWritten() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = writer != null ? writer.thread : null;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    public void recordHeadPose(long nanos, float quaternion[]) {
+        int slot = claim();
+        if (slot >= 0) {
+            System.arraycopy(quaternion, 0, values, slot * VALUES_PER_SAMPLE, 4);
+            publish(slot, HEAD_POSE, nanos);
+        }
+    }
+
+    public void recordGesture(long nanos, String gestureName, int eventCount) {
+        int slot = claim();
+        if (slot >= 0) {
+            ints[slot * 2] = SessionLog.indexOf(gestureName);
+            ints[slot * 2 + 1] = eventCount;
+            publish(slot, GESTURE, nanos);
+        }
+    }
+
+    public void recordCalibration(long nanos, int amplitude) {
+        calibration = amplitude;
+        int slot = claim();
+        if (slot >= 0) {
+            ints[slot * 2] = amplitude;
+            publish(slot, CALIBRATION, nanos);
+        }
+    }
+
+    public void recordFrame(long nanos, long frameNanos, long scanoutLeadNanos) {
+        int slot = claim();
+        if (slot >= 0) {
+            ints[slot * 2] = (int) Math.min(frameNanos, Integer.MAX_VALUE);
+            ints[slot * 2 + 1] = (int) Math.min(scanoutLeadNanos, Integer.MAX_VALUE);
+            publish(slot, FRAME, nanos);
+        }
+    }
+
+    /**
+     * @return Slot to fill, or -1 if the buffer is full or recording has stopped.
+     */
+    private int claim() {
+        if (!running) {
+            return -1;
+        }
+        while (true) {
+            long index = claimed.get();
+            if (index - consumed >= CAPACITY) {
+                dropped.incrementAndGet();
+                return -1;
+            }
+            if (claimed.compareAndSet(index, index + 1)) {
+                return (int) (index & (CAPACITY - 1));
+            }
+        }
+    }
+
+    private void publish(int slot, byte type, long nanos) {
+        types[slot] = type;
+        times[slot] = nanos;
+        // Ordered write, so the writer sees the fields above once it sees the new sequence.
+        published.lazySet(slot, published.get(slot) + CAPACITY);
+    }
+
+    /**
+     * Writes one session's file.
+     */
+    private class Writer implements Runnable {
+        final File file;
+        final Thread thread;
+        // Taken here rather than on the writer, so no sample predates the header and later
+        // calibrations are not mistaken for the one in effect at the start.
+        final long startMillis = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        final int startCalibration = calibration;
+        private final Thread previous;
+        // Index of the first sample of the next session, set on stop.
+        volatile long end = Long.MAX_VALUE;
+
+        Writer(File file, Thread previous) {
+            this.file = file;
+            this.previous = previous;
+            thread = new Thread(this, TAG);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            if (previous != null) {
+                // Samples are written in order, so wait until the previous file has its share.
+                try {
+                    previous.join();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            ByteBuffer batch =
+                    ByteBuffer.allocateDirect(BATCH_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            FileChannel channel = null;
+            try {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Could not create " + dir);
+                }
+                channel = new FileOutputStream(file, false).getChannel();
+                batch.putInt(SessionLog.MAGIC).putShort(SessionLog.VERSION).putShort((short) 0)
+                        .putLong(startMillis).putLong(startNanos);
+                if (startCalibration >= 0) {
+                    batch.put(CALIBRATION).putLong(startNanos).putInt(startCalibration);
+                }
+
+                boolean more = true;
+                while (more) {
+                    long last = end;
+                    drain(batch, channel, last);
+                    // Samples claimed before the stop may still be being published.
+                    more = consumed < last;
+                    long lost = dropped.getAndSet(0);
+                    if (lost > 0) {
+                        flushIfFull(batch, channel, SessionLog.MAX_RECORD_SIZE);
+                        batch.put(DROPPED).putLong(System.nanoTime()).putInt((int) lost);
+                    }
+                    flush(batch, channel);
+                    if (more) {
+                        LockSupport.parkNanos(WRITER_INTERVAL_NANOS);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write " + file, e);
+                synchronized (SessionRecorder.this) {
+                    if (writer == this) {
+                        running = false;
+                        end = claimed.get();
+                    }
+                }
+                // Otherwise already stopped, and the next session waits for this one.
+                long last = end;
+                skip(last);
+                while (consumed < last) {
+                    LockSupport.parkNanos(WRITER_INTERVAL_NANOS);
+                    skip(last);
+                }
+            } finally {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not close " + file, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes published samples, up to but not including the end index.
+     */
+    private void drain(ByteBuffer batch, FileChannel channel, long end) throws IOException {
+        long index = consumed;
+        while (index < end && isPublished(index)) {
+            int slot = (int) (index & (CAPACITY - 1));
+            flushIfFull(batch, channel, SessionLog.MAX_RECORD_SIZE);
+            batch.put(types[slot]).putLong(times[slot]);
+            switch (types[slot]) {
+                case HEAD_POSE:
+                    for (int i = 0; i < 4; i++) {
+                        batch.putFloat(values[slot * VALUES_PER_SAMPLE + i]);
+                    }
+                    break;
+                case GESTURE:
+                    batch.put((byte) ints[slot * 2]).putShort((short) ints[slot * 2 + 1]);
+                    break;
+                case CALIBRATION:
+                    batch.putInt(ints[slot * 2]);
+                    break;
+                case FRAME:
+                    batch.putInt(ints[slot * 2]).putInt(ints[slot * 2 + 1]);
+                    break;
+            }
+            index++;
+            consumed = index;
+        }
+    }
+
+    /**
+     * Discards published samples, up to but not including the end index.
+     */
+    private void skip(long end) {
+        long index = consumed;
+        while (index < end && isPublished(index)) {
+            index++;
+            consumed = index;
+        }
+    }
+
+    private boolean isPublished(long index) {
+        // Slot sequences start at 0 and grow by CAPACITY each time the slot is published.
+        return published.get((int) (index & (CAPACITY - 1))) == (index / CAPACITY + 1) * CAPACITY;
+    }
+
+    private static void flushIfFull(ByteBuffer batch, FileChannel channel, int needed)
+            throws IOException {
+        if (batch.remaining() < needed) {
+            flush(batch, channel);
+        }
+    }
+
+    private static void flush(ByteBuffer batch, FileChannel channel) throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        batch.clear();
+    }
+}
@@ -17,10 +17,14 @@
 package com.ojogaze.treasurehunt;
 
 import android.content.Context;
+import android.content.Intent;
 import android.media.MediaPlayer;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.util.Log;
 
@@ -30,17 +34,36 @@ import com.google.vr.sdk.base.GvrActivity;
 import com.google.vr.sdk.base.GvrView;
 import com.google.vr.sdk.base.HeadTransform;
 import com.google.vr.sdk.base.Viewport;
+import com.ojogaze.treasurehunt.oogles20.CommandBuffer;
+import com.ojogaze.treasurehunt.oogles20.Material;
+import com.ojogaze.treasurehunt.oogles20.Mesh;
+import com.ojogaze.treasurehunt.oogles20.MeshRegistry;
 import com.ojogaze.treasurehunt.oogles20.Model;
+import com.ojogaze.treasurehunt.oogles20.ParticleSystem;
 import com.ojogaze.treasurehunt.oogles20.Position;
+import com.ojogaze.treasurehunt.oogles20.RenderQueue;
+import com.ojogaze.treasurehunt.oogles20.RenderStats;
 import com.ojogaze.treasurehunt.oogles20.Shader;
-
-import java.util.HashMap;
+import com.ojogaze.treasurehunt.oogles20.TextureAtlas;
+import com.ojogaze.treasurehunt.net.HuntClient;
+import com.ojogaze.treasurehunt.net.HuntServer;
+import com.ojogaze.treasurehunt.net.HuntState;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.microedition.khronos.egl.EGLConfig;
 
@@ -52,6 +75,10 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
         Gesture.Observer {
 
     private final EyeController eyeController = new EyeController(this);
+    private final GazeTracker gazeTracker = new GazeTracker(eyeController,
+            eyeController.processor);
+    private final FramePacer framePacer = new FramePacer();
+    private SessionRecorder recorder;
 
     private static final String TAG = "TreasureHuntActivity";
 
@@ -59,7 +86,7 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
     private static final float Z_FAR = 100.0f;
 
     private static final float CAMERA_Z = 0.01f;
-    private static final float TIME_DELTA = 0.3f;
+    private static final float ROTATION_DEGREES_PER_SECOND = 18.0f;
 
     private static final float YAW_LIMIT = 0.12f;
     private static final float PITCH_LIMIT = 0.12f;
@@ -75,11 +102,37 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
     private static final float X_DISPLACEMENT = 3.0f;
     private static final float Z_DISPLACEMENT = 1.0f;
 
+    private static final long MOVE_DURATION_NANOS = 200 * 1000 * 1000;
+
     private static final int GESTURE_VISIBILITY_MILLIS = 1000;
     private static final int FIXATION_VISIBILITY_MILLIS = 1000;
 
-    private final Model cube = new Model("Cube", 0, 36);
-    private final Model floor = new Model("Floor");
+    private static final int STATS_INTERVAL_FRAMES = 600;
+
+    private static final String SESSION_LOG_DIR = "sessions";
+
+    // Intent extras for a shared hunt: serve one from this headset, or join host[:port].
+    public static final String EXTRA_HOST = "host";
+    public static final String EXTRA_SERVER = "server";
+
+    // GPU memory kept for meshes no longer in use, so they can be reused without reloading.
+    private static final long MESH_CACHE_BYTES = 8 * 1024 * 1024;
+
+    private static final float TREASURE_SCALE = 0.5f;
+
+    // Opaque draws per eye the queue starts with, it grows if there are more.
+    private static final int OPAQUE_DRAWS = 128;
+
+    private static final int PARTICLES_PER_BURST = 2048;
+    private static final int PARTICLE_BURSTS = 3;
+    private static final float PARTICLE_SIZE_PIXELS = 40.0f;
+
+    private final Model cube = new Model("Cube");
+    // Drawn once per chunk and treasure, with the chunk's mesh and position.
+    private final Model terrain = new Model("Terrain");
+    private final Model treasure = new Model("Treasure");
+    // Drawn once per other player in a shared hunt.
+    private final Model peer = new Model("Peer");
 
     private Model camera = new Model("Camera");
     private Model headView = new Model("HeadView");
@@ -89,6 +142,13 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
     private float cubeCurrentY = 0f;
     private float cubeCurrentZ = STABLE_Z;
 
+    // Gestures set the target above, the cube is drawn where the animation is at scanout time.
+    private final PositionAnimator cubeMotion =
+            new PositionAnimator(cubeCurrentX, cubeCurrentY, cubeCurrentZ, MOVE_DURATION_NANOS);
+    private final float cubePosition[] = new float[3];
+    private float cubeAngle = 0;
+    private long lastScanoutNanos = 0;
+
     private int currentColorIndex = 0;
 
     private Timer fixationResetTimer = null;
@@ -101,14 +161,60 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
     private final Set<Integer> blinkAmplitudes = new HashSet<>();
     private boolean animationRunning = false;
     private long lastFruitChangeTimeMillis = 0;
-    private final Map<String, MediaPlayer> players = new HashMap<>();
+    private final Map<String, Future<MediaPlayer>> players = new ConcurrentHashMap<>();
+
+    private AssetLoader assets;
+    private Future<String> vertexShaderSource;
+    private Future<String> gridShaderSource;
+    private Future<String> materialShaderSource;
+    private MeshRegistry meshes;
+    private Future<Mesh> cubeMesh;
+    private ChunkStreamer chunks;
+    private Future<String> particleVertexSource;
+    private Future<String> particleFragmentSource;
+    private ParticleSystem particles;
+    private Future<String> depthVertexSource;
+    private Future<String> depthFragmentSource;
+    // Tiles of the cube, treasure and peer materials, all drawn with one texture.
+    private final TextureAtlas atlas = new TextureAtlas("MaterialAtlas",
+            WorldLayoutData.ATLAS_TILE_SIZE, WorldLayoutData.ATLAS_COLUMNS);
+    private final RenderQueue opaque = new RenderQueue(OPAQUE_DRAWS);
+    // GL commands of the eye being drawn, recorded before any of them are submitted.
+    private final CommandBuffer eyeCommands = new CommandBuffer(OPAQUE_DRAWS * 16);
+
+    private FrameScheduler scheduler;
+
+    private long startupMillis = 0;
+    private int frameCount = 0;
+    private long lastFrameNanos = 0;
+    private final float headQuaternion[] = new float[4];
+
+    // Starts and stops the shared hunt, off the UI thread.
+    private ExecutorService huntExecutor;
+    private HuntServer huntServer;
+    private volatile HuntClient hunt;
+    // Shared state interpolated for the current frame, valid while in a shared hunt.
+    private final HuntState huntState = new HuntState();
+    private int huntPlayerId = -1;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        startupMillis = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                ? Process.getStartElapsedRealtime() : SystemClock.elapsedRealtime();
+        preload();
+        scheduler = new FrameScheduler(this);
         initializeGvrView();
+        File logDir = getExternalFilesDir(null);
+        recorder = new SessionRecorder(
+                new File(logDir != null ? logDir : getFilesDir(), SESSION_LOG_DIR));
         vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
+        // The tracker passes samples on to the controller, which updates the processor, before
+        // reading the processor itself.
+        eyeController.device.remove(eyeController);
+        eyeController.device.add(gazeTracker);
         setEyeEventSource((EyeEvent.Source) eyeController.processor);
+        startHunt(getIntent());
     }
 
     public void initializeGvrView() {
@@ -127,6 +233,8 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
             // allowing immersive interaction even at the throttled clockrates set by
             // sustained performance mode.
             AndroidCompat.setSustainedPerformanceMode(this, true);
+            // Reprojection also keeps skipped frames tracking the head.
+            scheduler.setThrottle(true);
         }
 
         setGvrView(gvrView);
@@ -136,36 +244,187 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
     public void onResume() {
         super.onResume();
         eyeController.connect();
+        framePacer.start();
+        scheduler.start();
+        recorder.start();
     }
 
     @Override
     public void onPause() {
+        recorder.stop();
+        scheduler.stop();
+        framePacer.stop();
         eyeController.disconnect();
         super.onPause();
     }
 
+    @Override
+    public void onDestroy() {
+        stopHunt();
+        eyeController.device.remove(gazeTracker);
+        meshes.release(WorldLayoutData.CUBE_MESH);
+        assets.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public void onStart() {
         super.onStart();
-        players.put("left", MediaPlayer.create(this, R.raw.slice));
-        players.put("right", MediaPlayer.create(this, R.raw.slice));
-        players.put("fixation", MediaPlayer.create(this, R.raw.jump));
-        players.put("blink", MediaPlayer.create(this, R.raw.ping));
-        players.put("explode", MediaPlayer.create(this, R.raw.explode));
+        players.put("left", assets.loadSound(R.raw.slice));
+        players.put("right", assets.loadSound(R.raw.slice));
+        players.put("fixation", assets.loadSound(R.raw.jump));
+        players.put("blink", assets.loadSound(R.raw.ping));
+        players.put("explode", assets.loadSound(R.raw.explode));
     }
 
     @Override
     public void onStop() {
-        for (MediaPlayer player : players.values()) {
-            player.release();
-        }
+        // Release on the loader so that players still being created are released as well.
+        final List<Future<MediaPlayer>> loaded = new ArrayList<>(players.values());
         players.clear();
+        assets.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (Future<MediaPlayer> player : loaded) {
+                    MediaPlayer mediaPlayer;
+                    try {
+                        mediaPlayer = Utils.await(player);
+                    } catch (RuntimeException e) {
+                        // Failed to load, so there is nothing to release. Keep releasing the rest.
+                        Log.w(TAG, "Could not load sound", e);
+                        continue;
+                    }
+                    if (mediaPlayer != null) {
+                        mediaPlayer.release();
+                    }
+                }
+            }
+        });
         super.onStop();
     }
 
+    /**
+     * Joins a shared hunt if the intent asks for one, hosting it first with {@link #EXTRA_HOST}.
+     * Without one, or if the connection fails, the game is single player.
+     */
+    private void startHunt(Intent intent) {
+        final boolean host = intent.getBooleanExtra(EXTRA_HOST, false);
+        final String server = host ? "localhost" : intent.getStringExtra(EXTRA_SERVER);
+        if (server == null) {
+            return;
+        }
+        if (host) {
+            huntServer = new HuntServer(HuntServer.DEFAULT_PORT);
+        }
+        // Resolving and binding may block, so not on the UI thread, and not on the loader
+        // either, where it could hold up the assets needed for the first frame.
+        huntExecutor = Executors.newSingleThreadExecutor();
+        huntExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                String parts[] = server.split(":");
+                int port;
+                try {
+                    port = parts.length > 1 ? Integer.parseInt(parts[1]) : HuntServer.DEFAULT_PORT;
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Bad shared hunt server " + server);
+                    return;
+                }
+                HuntClient client = new HuntClient(new InetSocketAddress(parts[0], port),
+                        new HuntClient.Listener() {
+                            private final HuntState latest = new HuntState();
+
+                            @Override
+                            public void onGesture(int player, String gesture) {
+                                HuntClient client = hunt;
+                                // Player and color come off the network, like in getMaterial.
+                                if ("explode".equals(gesture) && client != null
+                                        && player >= 0 && player < HuntState.MAX_ENTITIES
+                                        && client.copyLatest(latest)) {
+                                    particles.emit(latest.getX(player), latest.getY(player),
+                                            latest.getZ(player), WorldLayoutData.CUBE_COLORS[
+                                                    latest.getColor(player)
+                                                            % WorldLayoutData.CUBE_COLORS.length],
+                                            System.nanoTime());
+                                }
+                            }
+
+                            @Override
+                            public void onDisconnected(IOException error) {
+                                Log.w(TAG, "Left shared hunt", error);
+                            }
+                        });
+                try {
+                    if (huntServer != null) {
+                        huntServer.start();
+                    }
+                    client.start();
+                    hunt = client;
+                    Log.i(TAG, "Joining shared hunt at " + server);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not start shared hunt", e);
+                }
+            }
+        });
+    }
+
+    private void stopHunt() {
+        if (huntExecutor == null) {
+            return;
+        }
+        // Runs after the start, so it also stops a client that was still connecting.
+        huntExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                HuntClient client = hunt;
+                hunt = null;
+                if (client != null) {
+                    client.stop();
+                }
+                if (huntServer != null) {
+                    huntServer.stop();
+                }
+            }
+        });
+        huntExecutor.shutdown();
+    }
+
+    /**
+     * Starts reading shader sources and loading meshes before the GL surface exists, so
+     * that onSurfaceCreated only has to compile and upload.
+     */
+    private void preload() {
+        assets = new AssetLoader(this);
+        vertexShaderSource = assets.loadText(R.raw.light_vertex);
+        gridShaderSource = assets.loadText(R.raw.grid_fragment);
+        materialShaderSource = assets.loadText(R.raw.material_fragment);
+        particleVertexSource = assets.loadText(R.raw.particle_vertex);
+        particleFragmentSource = assets.loadText(R.raw.particle_fragment);
+        depthVertexSource = assets.loadText(R.raw.depth_vertex);
+        depthFragmentSource = assets.loadText(R.raw.depth_fragment);
+        atlas.load(assets.getExecutor(), WorldLayoutData.ATLAS_PAINTER);
+        meshes = new MeshRegistry(this, assets.getExecutor(), MESH_CACHE_BYTES);
+        cubeMesh = meshes.acquire(WorldLayoutData.CUBE_MESH);
+
+        WorldGenerator world = new WorldGenerator(System.currentTimeMillis());
+        Log.i(TAG, "World seed " + world.getSeed());
+        chunks = new ChunkStreamer(world, assets.getExecutor());
+        particles = new ParticleSystem(PARTICLES_PER_BURST, PARTICLE_BURSTS, world.getSeed());
+        particles.setPointSize(PARTICLE_SIZE_PIXELS);
+
+        cube.setAtlas(atlas);
+        treasure.setAtlas(atlas);
+        peer.setAtlas(atlas);
+        cube.setMaterial(WorldLayoutData.CUBE_MATERIALS[currentColorIndex]);
+        terrain.setColor(WorldLayoutData.FLOOR_COLOR);
+        // The grid shader covers most of the screen, so only shade what stays visible.
+        terrain.setDepthPrepass(true);
+    }
+
     @Override
     public void onRendererShutdown() {
         Log.i(TAG, "onRendererShutdown");
+        chunks.clear();
     }
 
     @Override
@@ -178,38 +437,87 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
         Log.i(TAG, "onSurfaceCreated");
         GLES20.glClearColor(0.1f, 0.1f, 0.1f, 0.5f); // Dark background so text shows up well.
 
-        cube.setVertices(WorldLayoutData.CUBE_COORDS);
-        cube.setColors(WorldLayoutData.CUBE_COLORS[currentColorIndex]);
-        cube.setNormals(WorldLayoutData.CUBE_NORMALS);
-
-        // make a floor
-        floor.setVertices(WorldLayoutData.FLOOR_COORDS);
-        floor.setNormals(WorldLayoutData.FLOOR_NORMALS);
-        floor.setColors(WorldLayoutData.FLOOR_COLORS);
-
-        Shader vertexShader = Shader.load(R.raw.light_vertex, GLES20.GL_VERTEX_SHADER, this);
-        Shader gridShader = Shader.load(R.raw.grid_fragment, GLES20.GL_FRAGMENT_SHADER, this);
-        Shader passthroughShader =
-                Shader.load(R.raw.passthrough_fragment, GLES20.GL_FRAGMENT_SHADER, this);
-        cube.attachShaders(new Shader[] {vertexShader, passthroughShader});
-        floor.attachShaders(new Shader[] {vertexShader, gridShader});
-
-        floor.translate(0, -FLOOR_DEPTH, 0); // Floor appears below user.
-
-        cube.translate(cubeCurrentX, cubeCurrentY, cubeCurrentZ);
+        // Buffers from a previous surface went away with its GL context.
+        meshes.onContextLost();
+        chunks.onContextLost();
+        cube.setMesh(Utils.await(cubeMesh));
+        treasure.setMesh(cube.getMesh());
+        peer.setMesh(cube.getMesh());
+        meshes.upload();
+        particles.onContextLost();
+        particles.upload();
+        atlas.onContextLost();
+        atlas.upload();
+
+        Shader vertexShader =
+                Shader.load(Utils.await(vertexShaderSource), GLES20.GL_VERTEX_SHADER);
+        Shader gridShader = Shader.load(Utils.await(gridShaderSource), GLES20.GL_FRAGMENT_SHADER);
+        Shader materialShader =
+                Shader.load(Utils.await(materialShaderSource), GLES20.GL_FRAGMENT_SHADER);
+        cube.attachShaders(new Shader[] {vertexShader, materialShader});
+        terrain.attachShaders(new Shader[] {vertexShader, gridShader});
+        // One linked program for all the material models, so they draw without switching.
+        treasure.shareProgram(cube);
+        peer.shareProgram(cube);
+        particles.attachShaders(new Shader[] {
+                Shader.load(Utils.await(particleVertexSource), GLES20.GL_VERTEX_SHADER),
+                Shader.load(Utils.await(particleFragmentSource), GLES20.GL_FRAGMENT_SHADER)});
+        opaque.attachDepthShaders(new Shader[] {
+                Shader.load(Utils.await(depthVertexSource), GLES20.GL_VERTEX_SHADER),
+                Shader.load(Utils.await(depthFragmentSource), GLES20.GL_FRAGMENT_SHADER)});
     }
 
     @Override
     public void onNewFrame(HeadTransform headTransform) {
-        // Rotate the cube if good signal and not fixated.
-        if (eyeController.processor.isGoodSignal() && fixationResetTimer == null) {
-            cube.rotate(TIME_DELTA, 0.5f, 0.5f, 1.0f);
+        // Skips frames that would look the same, or that the battery and heat can not afford.
+        scheduler.waitForFrame();
+        meshes.upload();
+        atlas.upload();
+
+        // Animate for the time this frame will be on screen rather than the time it is drawn.
+        long now = System.nanoTime();
+        long scanoutNanos = framePacer.getScanoutTimeNanos(now);
+
+        // Rotate the cube if good signal and not fixated, at the scheduler's tick rate.
+        boolean rotating = eyeController.processor.isGoodSignal() && fixationResetTimer == null;
+        long step = scheduler.getAnimationStep(now, scanoutNanos);
+        if (rotating) {
+            cubeAngle += ROTATION_DEGREES_PER_SECOND * step / 1e9f;
+            cubeAngle %= 360;
         }
+        lastScanoutNanos = scanoutNanos;
+
+        // In a shared hunt the server moves the cube, drawn smoothly between its snapshots.
+        HuntClient client = hunt;
+        huntPlayerId = client != null ? client.getPlayerId() : -1;
+        if (huntPlayerId >= 0 && client.sample(scanoutNanos, huntState)) {
+            cube.translate(huntState.getX(huntPlayerId), huntState.getY(huntPlayerId),
+                    huntState.getZ(huntPlayerId));
+            cube.setMaterial(getMaterial(huntState, huntPlayerId));
+        } else {
+            huntPlayerId = -1;
+            cubeMotion.get(scanoutNanos, cubePosition);
+            cube.translate(cubePosition[0], cubePosition[1], cubePosition[2]);
+        }
+        cube.rotate(cubeAngle, 0.5f, 0.5f, 1.0f);
 
         // Build the camera matrix and apply it to the ModelView.
         Matrix.setLookAtM(camera.value, 0, 0.0f, 0.0f, CAMERA_Z, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
 
+        // GVR already predicts the head pose for display, so only the eye estimate is extrapolated.
         headTransform.getHeadView(headView.value, 0);
+        gazeTracker.update(headView.value, scanoutNanos);
+
+        // The third row of the head view is the view direction.
+        chunks.update(-headView.value[2], -headView.value[10]);
+
+        headTransform.getQuaternion(headQuaternion, 0);
+        scheduler.onFrame(now, headQuaternion, rotating || huntPlayerId >= 0
+                || cubeMotion.isMoving(scanoutNanos) || particles.isActive(scanoutNanos));
+        recorder.recordHeadPose(now, headQuaternion);
+        recorder.recordFrame(now, lastFrameNanos == 0 ? 0 : now - lastFrameNanos,
+                scanoutNanos - now);
+        lastFrameNanos = now;
     }
 
     @Override
@@ -225,28 +533,67 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
         // Set the position of the light
         Position lightPosInEyeSpace = view.multiply(LIGHT_POS_IN_WORLD_SPACE);
 
-        // Build the ModelView and ModelViewProjection matrices
-        // for calculating cube position and light.
+        // Opaque draws are queued and submitted front to back.
         Model perspective = new Model("Perspective", eye.getPerspective(Z_NEAR, Z_FAR));
-        Model modelView = view.multiply(cube);
-        Model modelViewProjection = perspective.multiply(modelView);
-        cube.draw(modelView, modelViewProjection, lightPosInEyeSpace);
-
-        // Set modelView for the floor, so we draw floor in the correct location
-        modelView = view.multiply(floor);
-        modelViewProjection = perspective.multiply(modelView);
-        floor.draw(modelView, modelViewProjection, lightPosInEyeSpace);
+        opaque.begin(view, perspective, lightPosInEyeSpace);
+        opaque.add(cube);
+
+        for (int id = 0; huntPlayerId >= 0 && id < HuntState.MAX_ENTITIES; id++) {
+            if (id == huntPlayerId || !huntState.isAlive(id)) {
+                continue;
+            }
+            peer.translate(huntState.getX(id), huntState.getY(id), huntState.getZ(id));
+            peer.rotate(cubeAngle, 0.5f, 0.5f, 1.0f);
+            peer.setMaterial(getMaterial(huntState, id));
+            opaque.add(peer);
+        }
+
+        // Terrain appears below the user, with treasures resting on it.
+        for (WorldGenerator.Chunk chunk : chunks.getVisibleChunks()) {
+            terrain.setMesh(chunk.terrain);
+            terrain.translate(chunk.getOriginX(), -FLOOR_DEPTH, chunk.getOriginZ());
+            opaque.add(terrain, WorldGenerator.CHUNK_SIZE / 2, 0, WorldGenerator.CHUNK_SIZE / 2);
+
+            for (int i = 0; i < chunk.getTreasureCount(); i++) {
+                treasure.translate(chunk.getOriginX() + chunk.treasures[i * 3],
+                        chunk.treasures[i * 3 + 1] - FLOOR_DEPTH,
+                        chunk.getOriginZ() + chunk.treasures[i * 3 + 2]);
+                treasure.scale(TREASURE_SCALE, TREASURE_SCALE, TREASURE_SCALE);
+                treasure.setMaterial(
+                        WorldLayoutData.TREASURE_MATERIALS[chunk.treasureMaterials[i]]);
+                opaque.add(treasure);
+            }
+        }
+        eyeCommands.reset();
+        opaque.record(eyeCommands);
+        // Blended, so after everything opaque.
+        particles.record(eyeCommands, view, perspective, lastScanoutNanos);
+        eyeCommands.execute();
     }
 
     @Override
     public void onFinishFrame(Viewport viewport) {
+        if (startupMillis != 0) {
+            Log.i(TAG, String.format("Time to first frame %dms",
+                    SystemClock.elapsedRealtime() - startupMillis));
+            startupMillis = 0;
+        }
+        if (++frameCount % STATS_INTERVAL_FRAMES == 0) {
+            Log.i(TAG, String.format("Last %d frames %s", STATS_INTERVAL_FRAMES,
+                    RenderStats.format()));
+            RenderStats.reset();
+            Log.i(TAG, "Scheduler " + scheduler.formatStats());
+            Log.i(TAG, "Last eye commands " + eyeCommands.format());
+        }
     }
 
     @Override
     public void onCardboardTrigger() {
         Log.i(TAG, "onCardboardTrigger");
 
+        // A glance at the cube and the trigger select it, like holding a fixation on it.
         if (isLookingAtObject()) {
+            onGesture("fixation", Collections.<EyeEvent>emptyList());
         }
 
         // Always give user feedback.
@@ -254,12 +601,8 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
     }
 
     private boolean isLookingAtObject() {
-        // Convert object space to camera space. Use the headView from onNewFrame.
-        Position gaze = headView.multiply(cube).getPosition();
-        float pitch = (float) Math.atan2(gaze.value[1], -gaze.value[2]);
-        float yaw = (float) Math.atan2(gaze.value[0], -gaze.value[2]);
-
-        return Math.abs(pitch) < PITCH_LIMIT && Math.abs(yaw) < YAW_LIMIT;
+        // Uses head pose from onNewFrame combined with eye position from the EOG signal.
+        return gazeTracker.isLookingAt(cube, YAW_LIMIT, PITCH_LIMIT);
     }
 
     @Override
@@ -267,24 +610,37 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
         if (isDestroyed() || isRestricted() || isFinishing() || animationRunning) {
             return;
         }
+        recorder.recordGesture(System.nanoTime(), gestureName, events.size());
+        scheduler.wake();
+        HuntClient client = hunt;
+        if (client != null && client.sendGesture(gestureName)) {
+            // The server moves and recolors the cube, only feedback and calibration stay local.
+            if (!"multiblink".equals(gestureName)) {
+                play(gestureName);
+            }
+            if ("blink".equals(gestureName)) {
+                maybeUpdateDirections(events);
+            }
+            return;
+        }
         switch (gestureName) {
             case "left":
                 play(gestureName);
                 cubeCurrentX -= X_DISPLACEMENT;
-                cube.translate(cubeCurrentX, cubeCurrentY, cubeCurrentZ);
-                cube.setColors(WorldLayoutData.CUBE_COLORS[currentColorIndex]);
+                cubeMotion.moveTo(cubeCurrentX, cubeCurrentY, cubeCurrentZ, System.nanoTime());
+                cube.setMaterial(WorldLayoutData.CUBE_MATERIALS[currentColorIndex]);
                 animationRunning = true;
                 break;
             case "right":
                 play(gestureName);
                 cubeCurrentX += X_DISPLACEMENT;
-                cube.translate(cubeCurrentX, cubeCurrentY, cubeCurrentZ);
-                cube.setColors(WorldLayoutData.CUBE_COLORS[currentColorIndex]);
+                cubeMotion.moveTo(cubeCurrentX, cubeCurrentY, cubeCurrentZ, System.nanoTime());
+                cube.setMaterial(WorldLayoutData.CUBE_MATERIALS[currentColorIndex]);
                 animationRunning = true;
                 break;
             case "blink":
                 play(gestureName);
-                cube.setColors(WorldLayoutData.CUBE_COLORS[currentColorIndex]);
+                cube.setMaterial(WorldLayoutData.CUBE_MATERIALS[currentColorIndex]);
                 maybeUpdateDirections(events);
                 break;
             case "multiblink":
@@ -295,19 +651,26 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
                 }
                 currentColorIndex = ++currentColorIndex < WorldLayoutData.CUBE_COLORS.length
                         ? currentColorIndex : 0;
-                cube.setColors(WorldLayoutData.CUBE_COLORS[currentColorIndex]);
+                cube.setMaterial(WorldLayoutData.CUBE_MATERIALS[currentColorIndex]);
                 lastFruitChangeTimeMillis = currentTime;
                 break;
             case "fixation":
                 play(gestureName);
-                cube.setColors(WorldLayoutData.CUBE_COLOR_GOLD);
+                cube.setMaterial(WorldLayoutData.MATERIAL_GOLD);
                 cubeCurrentZ -= Z_DISPLACEMENT;
-                cube.translate(cubeCurrentX, cubeCurrentY, cubeCurrentZ);
+                cubeMotion.moveTo(cubeCurrentX, cubeCurrentY, cubeCurrentZ, System.nanoTime());
                 scheduleResetFixation(FIXATION_VISIBILITY_MILLIS);
                 break;
             case "explode":
                 play(gestureName);
-                cube.setColors(WorldLayoutData.CUBE_COLOR_INVISIBLE);
+                // Where the cube is now, it may still be animating towards its target. Sampled
+                // here, cubePosition belongs to the GL thread.
+                long nowNanos = System.nanoTime();
+                float position[] = new float[3];
+                cubeMotion.get(nowNanos, position);
+                particles.emit(position[0], position[1], position[2],
+                        WorldLayoutData.CUBE_COLORS[currentColorIndex], nowNanos);
+                cube.setMaterial(WorldLayoutData.MATERIAL_INVISIBLE);
                 scheduleResetFixation(FIXATION_VISIBILITY_MILLIS);
                 animationRunning = true;
                 break;
@@ -341,6 +704,7 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
 
     private void replaceDirections(int amplitude) {
         amplitude = Math.min(Math.max(amplitude, 800), 2000);
+        recorder.recordCalibration(System.nanoTime(), amplitude);
         for (Gesture direction : directions) {
             eyeEventSource.remove(direction);
         }
@@ -386,17 +750,30 @@ public class TreasureHuntActivity extends GvrActivity implements GvrView.StereoR
         fixationResetTimer.schedule(new TimerTask() {
             @Override
             public void run() {
-                cube.setColors(WorldLayoutData.CUBE_COLORS[currentColorIndex]);
+                cube.setMaterial(WorldLayoutData.CUBE_MATERIALS[currentColorIndex]);
                 cubeCurrentZ = STABLE_Z;
-                cube.translate(cubeCurrentX, cubeCurrentY, cubeCurrentZ);
+                cubeMotion.moveTo(cubeCurrentX, cubeCurrentY, cubeCurrentZ, System.nanoTime());
                 animationRunning = false;
                 fixationResetTimer = null;
             }
         }, delay);
     }
 
+    private static Material getMaterial(HuntState state, int id) {
+        if (!state.isVisible(id)) {
+            return WorldLayoutData.MATERIAL_INVISIBLE;
+        }
+        if (state.isHighlighted(id)) {
+            return WorldLayoutData.MATERIAL_GOLD;
+        }
+        return WorldLayoutData.CUBE_MATERIALS[
+                state.getColor(id) % WorldLayoutData.CUBE_MATERIALS.length];
+    }
+
     private void play(String name) {
-        MediaPlayer player = players.get(name);
+        Future<MediaPlayer> loading = players.get(name);
+        // Skip the sound rather than wait if it is still being decoded.
+        MediaPlayer player = loading != null && loading.isDone() ? Utils.await(loading) : null;
         if (player != null) {
             if (player.isPlaying()) {
                 player.stop();
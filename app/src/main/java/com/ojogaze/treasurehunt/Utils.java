@@ -4,10 +4,11 @@ import android.content.Context;
 import android.opengl.GLES20;
 import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Created by abhi on 5/23/17.
@@ -16,6 +17,8 @@ import java.io.InputStreamReader;
 public class Utils {
     private static final String TAG = "Utils";
 
+    private static final int READ_BUFFER_SIZE = 4096;
+
     /**
      * Converts a raw text file into a string.
      *
@@ -25,20 +28,40 @@ public class Utils {
     public static String readRawTextFile(int resId, Context context) {
         InputStream inputStream = context.getResources().openRawResource(resId);
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line).append("\n");
+            // Shaders are small, read the whole file at once rather than line by line.
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(
+                    inputStream.available(), READ_BUFFER_SIZE));
+            byte buffer[] = new byte[READ_BUFFER_SIZE];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
             }
-            reader.close();
-            return sb.toString();
+            inputStream.close();
+            return bytes.toString("UTF-8");
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Waits for a background task and returns its result.
+     *
+     * @param future Task to wait for.
+     * @return The result of the task.
+     * @throws RuntimeException if the task failed or the wait was interrupted.
+     */
+    public static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     /**
      * Checks if we've had an error inside of OpenGL ES, and if so what that error is.
      *
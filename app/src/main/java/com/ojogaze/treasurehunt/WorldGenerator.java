@@ -0,0 +1,208 @@
+package com.ojogaze.treasurehunt;
+
+import android.opengl.GLES20;
+
+import com.ojogaze.treasurehunt.oogles20.Mesh;
+import com.ojogaze.treasurehunt.oogles20.VertexLayout;
+
+import java.util.Random;
+
+/**
+ * Generates the hunt world procedurally in square chunks: a tile of rolling terrain and a few
+ * treasure placements per chunk.
+ * <p>
+ * <p>Everything is derived from the seed and the chunk coordinates, so chunks come out the same
+ * whatever order they are generated in and neighbouring tiles meet without seams. Generation
+ * only touches its own data and can run on any thread.
+ */
+public class WorldGenerator {
+    private static final String TAG = "WorldGenerator";
+
+    public static final float CHUNK_SIZE = 20.0f;
+
+    // Terrain quads along each side of a chunk.
+    private static final int TILE_QUADS = 16;
+    private static final int TILE_VERTICES = (TILE_QUADS + 1) * (TILE_QUADS + 1);
+
+    // Noise octaves as wavelength and height, in world units.
+    private static final float OCTAVES[][] = {{40.0f, 3.0f}, {11.0f, 0.8f}};
+
+    private static final int MAX_TREASURES_PER_CHUNK = 2;
+    private static final float TREASURE_HEIGHT = 1.0f;
+    // Keeps treasures clear of the cube the user is playing with.
+    private static final float TREASURE_CLEAR_RADIUS = 12.0f;
+
+    private static final VertexLayout TERRAIN_LAYOUT = new VertexLayout()
+            .add(VertexLayout.POSITION, 3, GLES20.GL_FLOAT, false)
+            .add(VertexLayout.NORMAL, 3, GLES20.GL_BYTE, true);
+
+    private final long seed;
+
+    /**
+     * One generated piece of the world. Positions are relative to the chunk origin, at the
+     * corner with the smallest x and z.
+     */
+    public static class Chunk {
+        public final int x;
+        public final int z;
+        public final Mesh terrain;
+        // Treasure positions as x, y, z triplets and their materials in TREASURE_MATERIALS.
+        public final float treasures[];
+        public final int treasureMaterials[];
+
+        Chunk(int x, int z, Mesh terrain, float treasures[], int treasureMaterials[]) {
+            this.x = x;
+            this.z = z;
+            this.terrain = terrain;
+            this.treasures = treasures;
+            this.treasureMaterials = treasureMaterials;
+        }
+
+        public float getOriginX() {
+            return x * CHUNK_SIZE;
+        }
+
+        public float getOriginZ() {
+            return z * CHUNK_SIZE;
+        }
+
+        public int getTreasureCount() {
+            return treasureMaterials.length;
+        }
+    }
+
+    public WorldGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Builds the terrain mesh and treasure placements of a chunk.
+     */
+    public Chunk generate(int chunkX, int chunkZ) {
+        float originX = chunkX * CHUNK_SIZE;
+        float originZ = chunkZ * CHUNK_SIZE;
+        float step = CHUNK_SIZE / TILE_QUADS;
+
+        Mesh terrain = new Mesh("Chunk" + chunkX + "," + chunkZ, TERRAIN_LAYOUT, TILE_VERTICES,
+                TILE_QUADS * TILE_QUADS * 6);
+        float normal[] = new float[3];
+        for (int j = 0; j <= TILE_QUADS; j++) {
+            for (int i = 0; i <= TILE_QUADS; i++) {
+                int vertex = j * (TILE_QUADS + 1) + i;
+                float x = originX + i * step;
+                float z = originZ + j * step;
+                terrain.put(vertex, VertexLayout.POSITION, i * step, heightAt(x, z), j * step);
+                normalAt(x, z, step, normal);
+                terrain.put(vertex, VertexLayout.NORMAL, normal);
+            }
+        }
+        int index = 0;
+        for (int j = 0; j < TILE_QUADS; j++) {
+            for (int i = 0; i < TILE_QUADS; i++) {
+                int corner = j * (TILE_QUADS + 1) + i;
+                int below = corner + TILE_QUADS + 1;
+                // Counter clockwise seen from above.
+                terrain.putIndex(index++, corner);
+                terrain.putIndex(index++, below);
+                terrain.putIndex(index++, corner + 1);
+                terrain.putIndex(index++, corner + 1);
+                terrain.putIndex(index++, below);
+                terrain.putIndex(index++, below + 1);
+            }
+        }
+
+        Random random = new Random(hash(chunkX, chunkZ));
+        int count = random.nextInt(MAX_TREASURES_PER_CHUNK + 1);
+        float positions[] = new float[count * 3];
+        int materials[] = new int[count];
+        int placed = 0;
+        for (int i = 0; i < count; i++) {
+            float x = random.nextFloat() * CHUNK_SIZE;
+            float z = random.nextFloat() * CHUNK_SIZE;
+            int material = random.nextInt(WorldLayoutData.TREASURE_MATERIALS.length);
+            float worldX = originX + x;
+            float worldZ = originZ + z;
+            if (worldX * worldX + worldZ * worldZ < TREASURE_CLEAR_RADIUS * TREASURE_CLEAR_RADIUS) {
+                continue;
+            }
+            positions[placed * 3] = x;
+            positions[placed * 3 + 1] = heightAt(worldX, worldZ) + TREASURE_HEIGHT;
+            positions[placed * 3 + 2] = z;
+            materials[placed++] = material;
+        }
+        if (placed < count) {
+            float trimmed[] = new float[placed * 3];
+            System.arraycopy(positions, 0, trimmed, 0, trimmed.length);
+            int trimmedMaterials[] = new int[placed];
+            System.arraycopy(materials, 0, trimmedMaterials, 0, placed);
+            positions = trimmed;
+            materials = trimmedMaterials;
+        }
+        return new Chunk(chunkX, chunkZ, terrain, positions, materials);
+    }
+
+    /**
+     * @return Terrain height above the floor level at a world position.
+     */
+    public float heightAt(float x, float z) {
+        float height = 0;
+        for (int octave = 0; octave < OCTAVES.length; octave++) {
+            height += noise(x / OCTAVES[octave][0], z / OCTAVES[octave][0], octave)
+                    * OCTAVES[octave][1];
+        }
+        return height;
+    }
+
+    private void normalAt(float x, float z, float delta, float normal[]) {
+        float dx = heightAt(x + delta, z) - heightAt(x - delta, z);
+        float dz = heightAt(x, z + delta) - heightAt(x, z - delta);
+        normal[0] = -dx;
+        normal[1] = 2 * delta;
+        normal[2] = -dz;
+        float length = (float) Math.sqrt(
+                normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]);
+        normal[0] /= length;
+        normal[1] /= length;
+        normal[2] /= length;
+    }
+
+    /**
+     * Value noise: random values at integer points, smoothly interpolated in between.
+     *
+     * @return Value between -1 and 1.
+     */
+    private float noise(float x, float z, int octave) {
+        int x0 = (int) Math.floor(x);
+        int z0 = (int) Math.floor(z);
+        float fx = smooth(x - x0);
+        float fz = smooth(z - z0);
+        float top = lerp(lattice(x0, z0, octave), lattice(x0 + 1, z0, octave), fx);
+        float bottom = lerp(lattice(x0, z0 + 1, octave), lattice(x0 + 1, z0 + 1, octave), fx);
+        return lerp(top, bottom, fz);
+    }
+
+    private float lattice(int x, int z, int octave) {
+        long h = hash(x, z) + octave * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 33)) * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        return (h & 0xFFFFFF) / (float) 0x800000 - 1.0f;
+    }
+
+    private long hash(int x, int z) {
+        long h = seed ^ ((long) x * 0x9E3779B1L) ^ ((long) z * 0x85EBCA77L << 32);
+        h = (h ^ (h >>> 31)) * 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 27);
+    }
+
+    private static float smooth(float t) {
+        return t * t * (3 - 2 * t);
+    }
+
+    private static float lerp(float a, float b, float t) {
+        return a + (b - a) * t;
+    }
+}
@@ -16,230 +16,81 @@
 
 package com.ojogaze.treasurehunt;
 
+import com.ojogaze.treasurehunt.oogles20.Material;
+import com.ojogaze.treasurehunt.oogles20.TextureAtlas;
+
 /**
- * Contains vertex, normal and color data.
+ * Contains color and material data. Vertex and normal data are in the mesh assets.
  */
 public final class WorldLayoutData {
 
-    private static final float GOLD[] = new float[] {1.0f, 0.6523f, 0.0f, 1.0f};
-    private static final float COLORS[][] = new float[][] {
+    public static final String CUBE_MESH = "meshes/cube.mesh";
+    public static final String FLOOR_MESH = "meshes/floor.mesh";
+
+    public static final float[] CUBE_COLOR_GOLD = new float[] {1.0f, 0.6523f, 0.0f, 1.0f};
+    public static final float[][] CUBE_COLORS = new float[][] {
             {0.8359375f, 0.17578125f, 0.125f, 1.0f},        // Red
             {0f, 0.5273f, 0.2656f, 1.0f},                   // Green
             {0.0f, 0.3398f, 0.9023f, 1.0f}                  // Blue
     };
-    private static final float INVISIBLE[] = new float[] {0.1f, 0.1f, 0.1f, 0.5f};
-
-    public static final float[] CUBE_COLOR_GOLD = new float[6 * 6 * 4];
-    public static final float[][] CUBE_COLORS = new float[3][6 * 6 * 4];
-    public static final float[] CUBE_COLOR_INVISIBLE = new float[6 * 6 * 4];
+    public static final float[] CUBE_COLOR_INVISIBLE = new float[] {0.1f, 0.1f, 0.1f, 0.5f};
+
+    public static final float[] FLOOR_COLOR = new float[] {0.0f, 0.3398f, 0.9023f, 1.0f};
+
+    // Tiles of the material atlas, painted by ATLAS_PAINTER.
+    public static final int ATLAS_TILE_SIZE = 64;
+    public static final int ATLAS_COLUMNS = 4;
+    public static final int TILE_PLAIN = 0;
+    public static final int TILE_STRIPES = 1;
+    public static final int TILE_DOTS = 2;
+    public static final int TILE_CHECKER = 3;
+    public static final int TILE_FRAME = 4;
+    private static final int PATTERN_TILES[] = {TILE_STRIPES, TILE_DOTS, TILE_CHECKER};
+
+    public static final Material MATERIAL_GOLD =
+            new Material("Gold", TILE_FRAME, CUBE_COLOR_GOLD);
+    public static final Material MATERIAL_INVISIBLE =
+            new Material("Invisible", TILE_PLAIN, CUBE_COLOR_INVISIBLE);
+    // Same order as CUBE_COLORS.
+    public static final Material CUBE_MATERIALS[] = new Material[] {
+            new Material("Red", TILE_FRAME, CUBE_COLORS[0]),
+            new Material("Green", TILE_FRAME, CUBE_COLORS[1]),
+            new Material("Blue", TILE_FRAME, CUBE_COLORS[2])
+    };
+    // Every pattern in every cube color. More variants only take more tiles.
+    public static final Material TREASURE_MATERIALS[] =
+            new Material[PATTERN_TILES.length * CUBE_COLORS.length];
     static {
-        for (int i = 0; i < 6 * 6; i++) {
-            for (int j = 0; j < GOLD.length; j++) {
-                CUBE_COLOR_GOLD[i * GOLD.length + j] = GOLD[j];
-            }
-        }
-        for (int k = 0; k < CUBE_COLORS.length; k++) {
-            for (int i = 0; i < 6 * 6; i++) {
-                for (int j = 0; j < COLORS[k].length; j++) {
-                    CUBE_COLORS[k][i * COLORS[k].length + j] = COLORS[k][j];
-                }
-            }
-        }
-        for (int i = 0; i < 6 * 6; i++) {
-            for (int j = 0; j < INVISIBLE.length; j++) {
-                CUBE_COLOR_INVISIBLE[i * INVISIBLE.length + j] = INVISIBLE[j];
-            }
+        for (int i = 0; i < TREASURE_MATERIALS.length; i++) {
+            int tile = PATTERN_TILES[i / CUBE_COLORS.length];
+            TREASURE_MATERIALS[i] = new Material("Treasure" + i, tile,
+                    CUBE_COLORS[i % CUBE_COLORS.length]);
         }
     }
 
-
-    public static final float[] CUBE_COORDS = new float[]{
-            // Front face
-            -1.0f, 1.0f, 1.0f,
-            -1.0f, -1.0f, 1.0f,
-            1.0f, 1.0f, 1.0f,
-            -1.0f, -1.0f, 1.0f,
-            1.0f, -1.0f, 1.0f,
-            1.0f, 1.0f, 1.0f,
-
-            // Right face
-            1.0f, 1.0f, 1.0f,
-            1.0f, -1.0f, 1.0f,
-            1.0f, 1.0f, -1.0f,
-            1.0f, -1.0f, 1.0f,
-            1.0f, -1.0f, -1.0f,
-            1.0f, 1.0f, -1.0f,
-
-            // Back face
-            1.0f, 1.0f, -1.0f,
-            1.0f, -1.0f, -1.0f,
-            -1.0f, 1.0f, -1.0f,
-            1.0f, -1.0f, -1.0f,
-            -1.0f, -1.0f, -1.0f,
-            -1.0f, 1.0f, -1.0f,
-
-            // Left face
-            -1.0f, 1.0f, -1.0f,
-            -1.0f, -1.0f, -1.0f,
-            -1.0f, 1.0f, 1.0f,
-            -1.0f, -1.0f, -1.0f,
-            -1.0f, -1.0f, 1.0f,
-            -1.0f, 1.0f, 1.0f,
-
-            // Top face
-            -1.0f, 1.0f, -1.0f,
-            -1.0f, 1.0f, 1.0f,
-            1.0f, 1.0f, -1.0f,
-            -1.0f, 1.0f, 1.0f,
-            1.0f, 1.0f, 1.0f,
-            1.0f, 1.0f, -1.0f,
-
-            // Bottom face
-            1.0f, -1.0f, -1.0f,
-            1.0f, -1.0f, 1.0f,
-            -1.0f, -1.0f, -1.0f,
-            1.0f, -1.0f, 1.0f,
-            -1.0f, -1.0f, 1.0f,
-            -1.0f, -1.0f, -1.0f,
-    };
-
-    public static final float[] CUBE_NORMALS = new float[]{
-            // Front face
-            0.0f, 0.0f, 1.0f,
-            0.0f, 0.0f, 1.0f,
-            0.0f, 0.0f, 1.0f,
-            0.0f, 0.0f, 1.0f,
-            0.0f, 0.0f, 1.0f,
-            0.0f, 0.0f, 1.0f,
-
-            // Right face
-            1.0f, 0.0f, 0.0f,
-            1.0f, 0.0f, 0.0f,
-            1.0f, 0.0f, 0.0f,
-            1.0f, 0.0f, 0.0f,
-            1.0f, 0.0f, 0.0f,
-            1.0f, 0.0f, 0.0f,
-
-            // Back face
-            0.0f, 0.0f, -1.0f,
-            0.0f, 0.0f, -1.0f,
-            0.0f, 0.0f, -1.0f,
-            0.0f, 0.0f, -1.0f,
-            0.0f, 0.0f, -1.0f,
-            0.0f, 0.0f, -1.0f,
-
-            // Left face
-            -1.0f, 0.0f, 0.0f,
-            -1.0f, 0.0f, 0.0f,
-            -1.0f, 0.0f, 0.0f,
-            -1.0f, 0.0f, 0.0f,
-            -1.0f, 0.0f, 0.0f,
-            -1.0f, 0.0f, 0.0f,
-
-            // Top face
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-
-            // Bottom face
-            0.0f, -1.0f, 0.0f,
-            0.0f, -1.0f, 0.0f,
-            0.0f, -1.0f, 0.0f,
-            0.0f, -1.0f, 0.0f,
-            0.0f, -1.0f, 0.0f,
-            0.0f, -1.0f, 0.0f
-    };
-
-    // The grid lines on the floor are rendered procedurally and large polygons cause floating point
-    // precision problems on some architectures. So we split the floor into 4 quadrants.
-    public static final float[] FLOOR_COORDS = new float[]{
-            // +X, +Z quadrant
-            200, 0, 0,
-            0, 0, 0,
-            0, 0, 200,
-            200, 0, 0,
-            0, 0, 200,
-            200, 0, 200,
-
-            // -X, +Z quadrant
-            0, 0, 0,
-            -200, 0, 0,
-            -200, 0, 200,
-            0, 0, 0,
-            -200, 0, 200,
-            0, 0, 200,
-
-            // +X, -Z quadrant
-            200, 0, -200,
-            0, 0, -200,
-            0, 0, 0,
-            200, 0, -200,
-            0, 0, 0,
-            200, 0, 0,
-
-            // -X, -Z quadrant
-            0, 0, -200,
-            -200, 0, -200,
-            -200, 0, 0,
-            0, 0, -200,
-            -200, 0, 0,
-            0, 0, 0,
-    };
-
-    public static final float[] FLOOR_NORMALS = new float[]{
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-            0.0f, 1.0f, 0.0f,
-    };
-
-    public static final float[] FLOOR_COLORS = new float[]{
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
-            0.0f, 0.3398f, 0.9023f, 1.0f,
+    /**
+     * Paints the tiles in light grays, so that the material color decides the hue.
+     */
+    public static final TextureAtlas.Painter ATLAS_PAINTER = new TextureAtlas.Painter() {
+        private static final int LIGHT = 0xFFFFFF;
+        private static final int DARK = 0xB0B0B0;
+
+        @Override
+        public int paint(int tile, float u, float v) {
+            switch (tile) {
+                case TILE_STRIPES:
+                    return (int) ((u + v) * 4) % 2 == 0 ? LIGHT : DARK;
+                case TILE_DOTS:
+                    float du = u * 4 - (int) (u * 4) - 0.5f;
+                    float dv = v * 4 - (int) (v * 4) - 0.5f;
+                    return du * du + dv * dv < 0.09f ? DARK : LIGHT;
+                case TILE_CHECKER:
+                    return ((int) (u * 4) + (int) (v * 4)) % 2 == 0 ? LIGHT : DARK;
+                case TILE_FRAME:
+                    return Math.min(Math.min(u, 1 - u), Math.min(v, 1 - v)) < 0.08f ? DARK : LIGHT;
+                default:
+                    return LIGHT;
+            }
+        }
     };
 }
@@ -0,0 +1,323 @@
+package com.ojogaze.treasurehunt.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects to a {@link HuntServer}, sends this player's gestures and keeps the recent shared
+ * states for drawing.
+ * <p>
+ * <p>Snapshots arrive at the server tick rate, much slower than frames. To move smoothly the
+ * client draws the state a couple of ticks in the past, interpolated between the two snapshots
+ * around that time. Snapshot times come from the server ticks, mapped to local time with the
+ * smallest delay seen, so network jitter does not make the motion stutter.
+ * <p>
+ * <p>Networking runs on its own thread with a non-blocking socket. All public methods can be
+ * called from any thread.
+ */
+public class HuntClient implements Runnable {
+    private static final int HISTORY = 8;
+    private static final int INTERPOLATION_TICKS = 2;
+    // How fast the clock offset creeps up after the smallest delay seen, per snapshot.
+    private static final float OFFSET_DRIFT = 0.01f;
+
+    private static final int IN_BYTES = 32 * 1024;
+    private static final int OUT_BYTES = 4 * 1024;
+
+    public interface Listener {
+        /**
+         * Called on the network thread for every gesture of every player, own ones included.
+         */
+        void onGesture(int player, String gesture);
+
+        /**
+         * Called on the network thread when the connection is lost or could not be made.
+         */
+        void onDisconnected(IOException error);
+    }
+
+    private final InetSocketAddress server;
+    private final Listener listener;
+
+    private Selector selector;
+    private SocketChannel channel;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    private final ByteBuffer in = ByteBuffer.allocate(IN_BYTES);
+    private final ByteBuffer out = ByteBuffer.allocate(OUT_BYTES);
+
+    // Latest state, which the next delta applies to.
+    private final HuntState latest = new HuntState();
+    private final HuntState history[] = new HuntState[HISTORY];
+    private int historyCount = 0;
+
+    private volatile int playerId = -1;
+    private long tickNanos = HuntServer.TICK_MILLIS * 1000000L;
+    private long offsetNanos = 0;
+
+    public HuntClient(InetSocketAddress server, Listener listener) {
+        this.server = server;
+        this.listener = listener;
+        for (int i = 0; i < HISTORY; i++) {
+            history[i] = new HuntState();
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        // Connections to this host may complete right away. Then the hello is already queued and
+        // write interest gets the first select to return and flush it.
+        boolean connected = channel.connect(server);
+        channel.register(selector, connected ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_CONNECT);
+        if (connected) {
+            hello();
+        }
+        running = true;
+        thread = new Thread(this, "HuntClient");
+        thread.start();
+    }
+
+    public void stop() {
+        Thread stopping;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            selector.wakeup();
+            stopping = thread;
+            thread = null;
+        }
+        // Not holding the lock, which the network thread may be waiting for.
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Id of this player's entity, or -1 until the server has accepted the player.
+     */
+    public int getPlayerId() {
+        return playerId;
+    }
+
+    /**
+     * Sends a gesture to the server, which applies it to this player's cube.
+     *
+     * @return false if not connected or the gesture is unknown.
+     */
+    public boolean sendGesture(String gesture) {
+        int index = Protocol.indexOf(gesture);
+        if (index < 0 || playerId < 0) {
+            return false;
+        }
+        synchronized (out) {
+            if (out.remaining() < 4) {
+                return false;
+            }
+            int start = Protocol.begin(out, Protocol.GESTURE);
+            out.put((byte) index);
+            Protocol.end(out, start);
+        }
+        selector.wakeup();
+        return true;
+    }
+
+    /**
+     * Waits until a snapshot of the given server tick or a later one has been received.
+     */
+    public synchronized void awaitTick(int tick) throws InterruptedException {
+        while (latest.tick < tick) {
+            wait();
+        }
+    }
+
+    /**
+     * Copies the latest state received.
+     *
+     * @return false if no state has been received yet.
+     */
+    public synchronized boolean copyLatest(HuntState state) {
+        if (historyCount == 0) {
+            return false;
+        }
+        state.copyFrom(latest);
+        return true;
+    }
+
+    /**
+     * Gets the state to draw at a time, interpolated between snapshots.
+     *
+     * @param nowNanos Time from {@link System#nanoTime()}, such as the frame's display time.
+     * @return false if no state has been received yet.
+     */
+    public synchronized boolean sample(long nowNanos, HuntState state) {
+        if (historyCount == 0) {
+            return false;
+        }
+        // Server time, in ticks, that is shown now.
+        float renderTick = (nowNanos - offsetNanos) / (float) tickNanos - INTERPOLATION_TICKS;
+        HuntState newest = history[(historyCount - 1) % HISTORY];
+        HuntState oldest = history[Math.max(0, historyCount - HISTORY) % HISTORY];
+        if (renderTick >= newest.tick) {
+            // Late snapshot, hold the newest rather than guess ahead.
+            state.copyFrom(newest);
+            return true;
+        }
+        if (renderTick <= oldest.tick) {
+            state.copyFrom(oldest);
+            return true;
+        }
+        for (int i = historyCount - 1; i > 0 && i >= historyCount - HISTORY + 1; i--) {
+            HuntState from = history[(i - 1) % HISTORY];
+            if (from.tick <= renderTick) {
+                HuntState to = history[i % HISTORY];
+                state.interpolate(from, to, (renderTick - from.tick) / (to.tick - from.tick));
+                return true;
+            }
+        }
+        state.copyFrom(oldest);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        IOException error = null;
+        try {
+            while (running) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid() && key.isConnectable() && channel.finishConnect()) {
+                        hello();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read();
+                    }
+                }
+                selector.selectedKeys().clear();
+                if (channel.isConnected()) {
+                    flush();
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (BufferUnderflowException | BufferOverflowException e) {
+            error = new IOException("Bad message", e);
+        } finally {
+            try {
+                channel.close();
+                selector.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+            playerId = -1;
+        }
+        if (running && listener != null) {
+            listener.onDisconnected(error);
+        }
+    }
+
+    private void hello() {
+        synchronized (out) {
+            int start = Protocol.begin(out, Protocol.HELLO);
+            out.putInt(Protocol.VERSION);
+            Protocol.end(out, start);
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(in) < 0) {
+            throw new IOException("Server closed the connection");
+        }
+        in.flip();
+        int length;
+        while ((length = Protocol.next(in, Protocol.MAX_MESSAGE_BYTES)) >= 0) {
+            int end = in.position() + length;
+            int limit = in.limit();
+            in.limit(end);
+            handle(in.get(), in);
+            in.limit(limit);
+            in.position(end);
+        }
+        in.compact();
+    }
+
+    private void handle(byte type, ByteBuffer in) throws IOException {
+        switch (type) {
+            case Protocol.WELCOME:
+                playerId = in.getShort();
+                tickNanos = in.getShort() * 1000000L;
+                break;
+            case Protocol.SNAPSHOT:
+                receiveSnapshot(in);
+                break;
+            default:
+                throw new IOException("Unknown message " + type);
+        }
+    }
+
+    private void receiveSnapshot(ByteBuffer in) throws IOException {
+        long now = System.nanoTime();
+        int tick = in.getInt();
+        int baseTick = in.getInt();
+        synchronized (this) {
+            if (baseTick < 0) {
+                latest.clear();
+            } else if (baseTick != latest.tick) {
+                throw new IOException("Delta against " + baseTick + " but have " + latest.tick);
+            }
+            latest.readDelta(in);
+            latest.tick = tick;
+            if (historyCount > 0 && tick <= history[(historyCount - 1) % HISTORY].tick) {
+                throw new IOException("Snapshot " + tick + " out of order");
+            }
+            history[historyCount % HISTORY].copyFrom(latest);
+            historyCount++;
+            notifyAll();
+
+            long offset = now - tick * tickNanos;
+            if (historyCount == 1 || offset < offsetNanos) {
+                offsetNanos = offset;
+            } else {
+                offsetNanos += (long) ((offset - offsetNanos) * OFFSET_DRIFT);
+            }
+        }
+
+        int count = in.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int player = in.getShort();
+            String gesture = Protocol.nameOf(in.get());
+            if (listener != null && gesture != null) {
+                listener.onGesture(player, gesture);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        boolean pending;
+        synchronized (out) {
+            out.flip();
+            channel.write(out);
+            pending = out.hasRemaining();
+            out.compact();
+        }
+        channel.keyFor(selector).interestOps(
+                SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+    }
+}
@@ -0,0 +1,462 @@
+package com.ojogaze.treasurehunt.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Authoritative server for a shared hunt. Each connected player gets a cube, which the
+ * player's gestures move and recolor with the same rules as the single player game.
+ * <p>
+ * <p>A single thread serves all players with non-blocking sockets. Gestures are applied as they
+ * arrive, and every tick the state is sent to each player as a delta against the last snapshot
+ * that player was sent. Players whose socket is backed up skip ticks rather than let data queue
+ * up, the next delta simply spans more ticks. Deltas for the same base tick are encoded once
+ * and shared.
+ * <p>
+ * <p>Pure Java, so it can run on a headset, a desktop or in a unit test.
+ */
+public class HuntServer implements Runnable {
+    public static final int DEFAULT_PORT = 7770;
+    public static final int TICK_MILLIS = 50;
+
+    // Ticks of state and gestures kept to encode deltas against.
+    private static final int HISTORY = 32;
+    private static final int MAX_GESTURES_PER_TICK = 64;
+
+    // Same as the single player game.
+    private static final float STABLE_Z = -8.0f;
+    private static final float X_DISPLACEMENT = 3.0f;
+    private static final float Z_DISPLACEMENT = 1.0f;
+    private static final float SPAWN_SPACING = 4.0f;
+    private static final int COLORS = 3;
+    private static final int RESET_TICKS = 1000 / TICK_MILLIS;
+    private static final int COLOR_CHANGE_TICKS = 2000 / TICK_MILLIS;
+
+    private static final int IN_BYTES = 4 * 1024;
+    private static final int OUT_BYTES = 32 * 1024;
+    // Holds a full snapshot or a delta spanning the whole history.
+    private static final int SNAPSHOT_BYTES = Protocol.MAX_MESSAGE_BYTES + 2;
+    // Beyond this much unsent data a player is considered slow and skips ticks.
+    private static final int SLOW_PLAYER_BYTES = 16 * 1024;
+
+    private final int requestedPort;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    private final HuntState state = new HuntState();
+    private final HuntState history[] = new HuntState[HISTORY];
+    private final short gesturePlayers[][] = new short[HISTORY][MAX_GESTURES_PER_TICK];
+    private final byte gestures[][] = new byte[HISTORY][MAX_GESTURES_PER_TICK];
+    private final int gestureCounts[] = new int[HISTORY];
+
+    private final Player players[] = new Player[HuntState.MAX_ENTITIES];
+    private final int resetTicks[] = new int[HuntState.MAX_ENTITIES];
+    private final int colorChangeTicks[] = new int[HuntState.MAX_ENTITIES];
+    private int tick = 0;
+
+    // Encoded snapshots of the current tick, by base tick. Bases are nearly always the same.
+    private final ByteBuffer encoded[] = new ByteBuffer[HISTORY + 1];
+    private final int encodedBase[] = new int[HISTORY + 1];
+    private int encodedCount = 0;
+
+    private volatile int playerCount = 0;
+    private volatile long bytesSent = 0;
+    private volatile long snapshotsSent = 0;
+    private volatile long snapshotsSkipped = 0;
+
+    private static class Player {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(IN_BYTES);
+        final ByteBuffer out = ByteBuffer.allocate(OUT_BYTES);
+        int id = -1;
+        int baseTick = -1;
+
+        Player(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * @param port Port to listen on, or 0 for any free port.
+     */
+    public HuntServer(int port) {
+        this.requestedPort = port;
+        for (int i = 0; i < HISTORY; i++) {
+            history[i] = new HuntState();
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(requestedPort));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this, "HuntServer");
+        thread.start();
+    }
+
+    public void stop() {
+        Thread stopping;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            selector.wakeup();
+            stopping = thread;
+            thread = null;
+        }
+        // Not holding the lock, which the network thread may be waiting for.
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getPlayerCount() {
+        return playerCount;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getSnapshotsSent() {
+        return snapshotsSent;
+    }
+
+    /**
+     * @return Snapshots not sent because the player's connection was backed up.
+     */
+    public long getSnapshotsSkipped() {
+        return snapshotsSkipped;
+    }
+
+    /**
+     * Copies the state as of the last tick.
+     */
+    public synchronized void copyState(HuntState out) {
+        out.copyFrom(history[(tick + HISTORY - 1) % HISTORY]);
+    }
+
+    @Override
+    public void run() {
+        long nextTickNanos = System.nanoTime();
+        try {
+            while (running) {
+                long waitMillis = (nextTickNanos - System.nanoTime()) / 1000000;
+                if (waitMillis > 0) {
+                    selector.select(waitMillis);
+                } else {
+                    selector.selectNow();
+                }
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                     it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Player player = (Player) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(player);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(player);
+                        }
+                    } catch (IOException | BufferUnderflowException
+                            | BufferOverflowException e) {
+                        disconnect(player);
+                    }
+                }
+                if (System.nanoTime() - nextTickNanos >= 0) {
+                    step();
+                    broadcast();
+                    nextTickNanos += TICK_MILLIS * 1000000L;
+                    // Do not try to catch up after a stall, just carry on from now.
+                    if (System.nanoTime() - nextTickNanos > TICK_MILLIS * 1000000L) {
+                        nextTickNanos = System.nanoTime();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The selector failed, nothing left to serve with.
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Player) {
+                    disconnect((Player) key.attachment());
+                }
+            }
+            close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Player(channel));
+    }
+
+    private void read(Player player) throws IOException {
+        if (player.channel.read(player.in) < 0) {
+            throw new IOException("Closed");
+        }
+        player.in.flip();
+        int length;
+        while ((length = Protocol.next(player.in, Protocol.MAX_CLIENT_MESSAGE_BYTES)) >= 0) {
+            int end = player.in.position() + length;
+            int limit = player.in.limit();
+            player.in.limit(end);
+            handle(player, player.in.get(), player.in);
+            player.in.limit(limit);
+            player.in.position(end);
+        }
+        player.in.compact();
+    }
+
+    private void handle(Player player, byte type, ByteBuffer in) throws IOException {
+        switch (type) {
+            case Protocol.HELLO:
+                if (in.getInt() != Protocol.VERSION || player.id >= 0) {
+                    throw new IOException("Bad hello");
+                }
+                join(player);
+                break;
+            case Protocol.GESTURE:
+                if (player.id < 0) {
+                    throw new IOException("Gesture before hello");
+                }
+                applyGesture(player.id, in.get());
+                break;
+            default:
+                throw new IOException("Unknown message " + type);
+        }
+    }
+
+    private void join(Player player) throws IOException {
+        int id = 0;
+        while (id < players.length && players[id] != null) {
+            id++;
+        }
+        if (id == players.length) {
+            throw new IOException("Server full");
+        }
+        players[id] = player;
+        player.id = id;
+        playerCount++;
+
+        // Spread players out to alternate sides of the first one.
+        float x = ((id + 1) / 2) * (id % 2 == 0 ? 1 : -1) * SPAWN_SPACING;
+        synchronized (this) {
+            state.set(id, x, 0, STABLE_Z, 0, HuntState.VISIBLE);
+        }
+        int start = Protocol.begin(player.out, Protocol.WELCOME);
+        player.out.putShort((short) id).putShort((short) TICK_MILLIS);
+        Protocol.end(player.out, start);
+        flush(player);
+    }
+
+    void applyGesture(int id, int gesture) {
+        String name = Protocol.nameOf(gesture);
+        if (name == null) {
+            return;
+        }
+        synchronized (this) {
+            float x = state.getX(id);
+            float y = state.getY(id);
+            float z = state.getZ(id);
+            int color = state.getColor(id);
+            int flags = state.isVisible(id) ? HuntState.VISIBLE : 0;
+            switch (name) {
+                case "left":
+                    x -= X_DISPLACEMENT;
+                    break;
+                case "right":
+                    x += X_DISPLACEMENT;
+                    break;
+                case "multiblink":
+                    if (tick < colorChangeTicks[id]) {
+                        // Ignore quick multiblink events.
+                        return;
+                    }
+                    color = (color + 1) % COLORS;
+                    colorChangeTicks[id] = tick + COLOR_CHANGE_TICKS;
+                    break;
+                case "fixation":
+                    z -= Z_DISPLACEMENT;
+                    flags |= HuntState.HIGHLIGHTED;
+                    resetTicks[id] = tick + RESET_TICKS;
+                    break;
+                case "explode":
+                    flags &= ~HuntState.VISIBLE;
+                    resetTicks[id] = tick + RESET_TICKS;
+                    break;
+            }
+            state.set(id, x, y, z, color, flags);
+
+            int slot = tick % HISTORY;
+            if (gestureCounts[slot] < MAX_GESTURES_PER_TICK) {
+                gesturePlayers[slot][gestureCounts[slot]] = (short) id;
+                gestures[slot][gestureCounts[slot]++] = (byte) gesture;
+            }
+        }
+    }
+
+    /**
+     * Ends the current tick: runs timers and records the state for deltas.
+     */
+    synchronized void step() {
+        for (int id = 0; id < players.length; id++) {
+            if (players[id] != null && resetTicks[id] != 0 && tick >= resetTicks[id]) {
+                resetTicks[id] = 0;
+                state.set(id, state.getX(id), state.getY(id), STABLE_Z, state.getColor(id),
+                        HuntState.VISIBLE);
+            }
+        }
+        state.tick = tick;
+        history[tick % HISTORY].copyFrom(state);
+        tick++;
+        gestureCounts[tick % HISTORY] = 0;
+    }
+
+    private void broadcast() {
+        int current = tick - 1;
+        encodedCount = 0;
+        for (Player player : players) {
+            if (player == null) {
+                continue;
+            }
+            if (player.out.position() > SLOW_PLAYER_BYTES) {
+                snapshotsSkipped++;
+                continue;
+            }
+            // Bases that fell out of the history get a full snapshot.
+            int base = player.baseTick >= 0 && current - player.baseTick < HISTORY
+                    ? player.baseTick : -1;
+            ByteBuffer snapshot = encode(current, base);
+            if (player.out.remaining() < snapshot.remaining()) {
+                snapshotsSkipped++;
+                continue;
+            }
+            player.out.put(snapshot.duplicate());
+            player.baseTick = current;
+            snapshotsSent++;
+            try {
+                flush(player);
+            } catch (IOException e) {
+                disconnect(player);
+            }
+        }
+    }
+
+    /**
+     * @param base Tick of the snapshot the player has, within the history, or -1 for a full one.
+     * @return Snapshot message, shared by players with the same base until the next broadcast.
+     */
+    ByteBuffer encode(int current, int base) {
+        for (int i = 0; i < encodedCount; i++) {
+            if (encodedBase[i] == base) {
+                return encoded[i];
+            }
+        }
+        if (encoded[encodedCount] == null) {
+            encoded[encodedCount] = ByteBuffer.allocate(SNAPSHOT_BYTES);
+        }
+        ByteBuffer out = encoded[encodedCount];
+        encodedBase[encodedCount++] = base;
+        out.clear();
+        int start = Protocol.begin(out, Protocol.SNAPSHOT);
+        out.putInt(current).putInt(base);
+        history[current % HISTORY].writeDelta(base >= 0 ? history[base % HISTORY] : null, out);
+
+        int countPosition = out.position();
+        out.putShort((short) 0);
+        int count = 0;
+        // A delta carries the gestures of every tick since its base, which is within the history,
+        // so a skipped snapshot loses none. A full snapshot carries the last tick's gestures
+        // only, older ones are stale anyway.
+        for (int t = base >= 0 ? base + 1 : current; t <= current; t++) {
+            int slot = t % HISTORY;
+            for (int i = 0; i < gestureCounts[slot]; i++) {
+                out.putShort(gesturePlayers[slot][i]).put(gestures[slot][i]);
+                count++;
+            }
+        }
+        out.putShort(countPosition, (short) count);
+        Protocol.end(out, start);
+        out.flip();
+        return out;
+    }
+
+    private void flush(Player player) throws IOException {
+        player.out.flip();
+        bytesSent += player.channel.write(player.out);
+        boolean pending = player.out.hasRemaining();
+        player.out.compact();
+        SelectionKey key = player.channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    private void disconnect(Player player) {
+        if (player.id >= 0 && players[player.id] == player) {
+            players[player.id] = null;
+            resetTicks[player.id] = 0;
+            colorChangeTicks[player.id] = 0;
+            synchronized (this) {
+                state.remove(player.id);
+            }
+            playerCount--;
+        }
+        player.id = -1;
+        try {
+            player.channel.close();
+        } catch (IOException e) {
+            // Already gone.
+        }
+    }
+
+    private void close() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
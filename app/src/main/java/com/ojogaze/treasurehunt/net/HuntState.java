@@ -0,0 +1,240 @@
+package com.ojogaze.treasurehunt.net;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * State of a shared hunt at one server tick: a cube per player with its position, color and
+ * whether it is visible or highlighted.
+ * <p>
+ * <p>Positions are kept quantized to centimeters, so a state decoded by a client is exactly the
+ * state the server encoded and later deltas apply to the same values on both sides.
+ * <p>
+ * <p>A delta lists only the entities that differ from a base state and, for each, only the
+ * fields that changed. Small moves are sent as byte offsets from the base position.
+ */
+public class HuntState {
+    public static final int MAX_ENTITIES = 256;
+
+    static final int ALIVE = 1;
+    static final int VISIBLE = 2;
+    static final int HIGHLIGHTED = 4;
+
+    // Bits for the fields present in an entity delta.
+    private static final int X = 1;
+    private static final int Y = 2;
+    private static final int Z = 4;
+    private static final int COLOR = 8;
+    private static final int FLAGS = 16;
+    private static final int SMALL = 32;
+
+    private static final float UNIT = 0.01f;
+
+    private static final HuntState EMPTY = new HuntState();
+
+    public int tick = -1;
+
+    private final short x[] = new short[MAX_ENTITIES];
+    private final short y[] = new short[MAX_ENTITIES];
+    private final short z[] = new short[MAX_ENTITIES];
+    private final byte color[] = new byte[MAX_ENTITIES];
+    private final byte flags[] = new byte[MAX_ENTITIES];
+
+    public boolean isAlive(int id) {
+        return (flags[id] & ALIVE) != 0;
+    }
+
+    public boolean isVisible(int id) {
+        return (flags[id] & VISIBLE) != 0;
+    }
+
+    public boolean isHighlighted(int id) {
+        return (flags[id] & HIGHLIGHTED) != 0;
+    }
+
+    public float getX(int id) {
+        return x[id] * UNIT;
+    }
+
+    public float getY(int id) {
+        return y[id] * UNIT;
+    }
+
+    public float getZ(int id) {
+        return z[id] * UNIT;
+    }
+
+    /**
+     * @return Color index as sent by the server, not checked against any palette.
+     */
+    public int getColor(int id) {
+        return color[id] & 0xFF;
+    }
+
+    void set(int id, float x, float y, float z, int color, int flags) {
+        this.x[id] = quantize(x);
+        this.y[id] = quantize(y);
+        this.z[id] = quantize(z);
+        this.color[id] = (byte) color;
+        this.flags[id] = (byte) (flags | ALIVE);
+    }
+
+    void remove(int id) {
+        // Cleared completely, so that removed entities are not sent in full snapshots.
+        x[id] = 0;
+        y[id] = 0;
+        z[id] = 0;
+        color[id] = 0;
+        flags[id] = 0;
+    }
+
+    void clear() {
+        copyFrom(EMPTY);
+    }
+
+    public void copyFrom(HuntState other) {
+        tick = other.tick;
+        System.arraycopy(other.x, 0, x, 0, MAX_ENTITIES);
+        System.arraycopy(other.y, 0, y, 0, MAX_ENTITIES);
+        System.arraycopy(other.z, 0, z, 0, MAX_ENTITIES);
+        System.arraycopy(other.color, 0, color, 0, MAX_ENTITIES);
+        System.arraycopy(other.flags, 0, flags, 0, MAX_ENTITIES);
+    }
+
+    /**
+     * Blends positions between two states. Colors and flags switch over half way.
+     *
+     * @param t 0 for the first state, 1 for the second.
+     */
+    public void interpolate(HuntState from, HuntState to, float t) {
+        HuntState nearest = t < 0.5f ? from : to;
+        tick = nearest.tick;
+        for (int id = 0; id < MAX_ENTITIES; id++) {
+            // Entities that just appeared or went away are not blended with the empty slot.
+            boolean blend = from.isAlive(id) && to.isAlive(id);
+            x[id] = blend ? lerp(from.x[id], to.x[id], t) : nearest.x[id];
+            y[id] = blend ? lerp(from.y[id], to.y[id], t) : nearest.y[id];
+            z[id] = blend ? lerp(from.z[id], to.z[id], t) : nearest.z[id];
+            color[id] = nearest.color[id];
+            flags[id] = nearest.flags[id];
+        }
+    }
+
+    /**
+     * Writes the changes from a base state to this one.
+     *
+     * @param base State the receiver has, or null to write everything.
+     */
+    void writeDelta(HuntState base, ByteBuffer out) {
+        if (base == null) {
+            base = EMPTY;
+        }
+        int countPosition = out.position();
+        out.putShort((short) 0);
+        int count = 0;
+        for (int id = 0; id < MAX_ENTITIES; id++) {
+            int dx = x[id] - base.x[id];
+            int dy = y[id] - base.y[id];
+            int dz = z[id] - base.z[id];
+            int mask = (dx != 0 ? X : 0) | (dy != 0 ? Y : 0) | (dz != 0 ? Z : 0)
+                    | (color[id] != base.color[id] ? COLOR : 0)
+                    | (flags[id] != base.flags[id] ? FLAGS : 0);
+            if (mask == 0) {
+                continue;
+            }
+            if (fitsByte(dx) && fitsByte(dy) && fitsByte(dz)) {
+                mask |= SMALL;
+            }
+            out.putShort((short) id).put((byte) mask);
+            putPosition(out, mask, X, x[id], dx);
+            putPosition(out, mask, Y, y[id], dy);
+            putPosition(out, mask, Z, z[id], dz);
+            if ((mask & COLOR) != 0) {
+                out.put(color[id]);
+            }
+            if ((mask & FLAGS) != 0) {
+                out.put(flags[id]);
+            }
+            count++;
+        }
+        out.putShort(countPosition, (short) count);
+    }
+
+    /**
+     * Applies a delta written by {@link #writeDelta(HuntState, ByteBuffer)} against the state
+     * this one holds.
+     */
+    void readDelta(ByteBuffer in) throws IOException {
+        try {
+            int count = in.getShort() & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                int id = in.getShort() & 0xFFFF;
+                if (id >= MAX_ENTITIES) {
+                    throw new IOException("Bad entity " + id);
+                }
+                int mask = in.get();
+                x[id] = getPosition(in, mask, X, x[id]);
+                y[id] = getPosition(in, mask, Y, y[id]);
+                z[id] = getPosition(in, mask, Z, z[id]);
+                if ((mask & COLOR) != 0) {
+                    color[id] = in.get();
+                }
+                if ((mask & FLAGS) != 0) {
+                    flags[id] = in.get();
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated delta", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof HuntState)) {
+            return false;
+        }
+        HuntState other = (HuntState) object;
+        return tick == other.tick && Arrays.equals(x, other.x) && Arrays.equals(y, other.y)
+                && Arrays.equals(z, other.z) && Arrays.equals(color, other.color)
+                && Arrays.equals(flags, other.flags);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * tick + Arrays.hashCode(x)) + Arrays.hashCode(z);
+    }
+
+    private static void putPosition(ByteBuffer out, int mask, int field, short value,
+                                    int delta) {
+        if ((mask & field) == 0) {
+            return;
+        }
+        if ((mask & SMALL) != 0) {
+            out.put((byte) delta);
+        } else {
+            out.putShort(value);
+        }
+    }
+
+    private static short getPosition(ByteBuffer in, int mask, int field, short base) {
+        if ((mask & field) == 0) {
+            return base;
+        }
+        return (mask & SMALL) != 0 ? (short) (base + in.get()) : in.getShort();
+    }
+
+    private static boolean fitsByte(int value) {
+        return value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE;
+    }
+
+    private static short quantize(float value) {
+        return (short) Math.max(Short.MIN_VALUE,
+                Math.min(Short.MAX_VALUE, Math.round(value / UNIT)));
+    }
+
+    private static short lerp(short from, short to, float t) {
+        return (short) Math.round(from + (to - from) * t);
+    }
+}
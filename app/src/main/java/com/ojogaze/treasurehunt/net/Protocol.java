@@ -0,0 +1,89 @@
+package com.ojogaze.treasurehunt.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Message framing and constants shared by {@link HuntServer} and {@link HuntClient}.
+ * <p>
+ * <p>Every message is a short length, counting the type and the payload, then a byte type and
+ * the payload, all big endian:
+ * <ul>
+ *     <li>{@link #HELLO}, client to server: int protocol version.</li>
+ *     <li>{@link #GESTURE}, client to server: byte index in {@link #GESTURES}.</li>
+ *     <li>{@link #WELCOME}, server to client: short player id, short tick interval millis.</li>
+ *     <li>{@link #SNAPSHOT}, server to client: int tick, int tick of the snapshot it is a delta
+ *     against or -1, the entity delta from {@link HuntState}, then short number of gestures
+ *     since the base tick and for each a short player id and byte gesture index.</li>
+ * </ul>
+ */
+final class Protocol {
+    static final int VERSION = 1;
+
+    static final byte HELLO = 1;
+    static final byte GESTURE = 2;
+    static final byte WELCOME = 3;
+    static final byte SNAPSHOT = 4;
+
+    // Longest message after the length field, so that whole messages fit 16 KB. Receive buffers
+    // must be at least two bytes longer than the messages they accept, or those never complete.
+    static final int MAX_MESSAGE_BYTES = 16 * 1024 - 2;
+    // Longest message a client sends, a hello.
+    static final int MAX_CLIENT_MESSAGE_BYTES = 8;
+
+    static final String GESTURES[] =
+            {"left", "right", "blink", "multiblink", "fixation", "explode"};
+
+    private Protocol() {
+    }
+
+    /**
+     * Starts a message, to be completed with {@link #end(ByteBuffer, int)}.
+     *
+     * @return Position of the message, for {@link #end(ByteBuffer, int)}.
+     */
+    static int begin(ByteBuffer out, byte type) {
+        int start = out.position();
+        out.putShort((short) 0).put(type);
+        return start;
+    }
+
+    static void end(ByteBuffer out, int start) {
+        out.putShort(start, (short) (out.position() - start - 2));
+    }
+
+    /**
+     * Finds the next complete message in a buffer ready for reading.
+     *
+     * @param maxLength Longest message accepted, at most the buffer capacity less 2.
+     * @return Length of the message after its length field, with the buffer positioned at its
+     * type, or -1 if the buffer does not hold a complete message yet.
+     */
+    static int next(ByteBuffer in, int maxLength) throws IOException {
+        if (in.remaining() < 2) {
+            return -1;
+        }
+        int length = in.getShort(in.position()) & 0xFFFF;
+        if (length == 0 || length > maxLength) {
+            throw new IOException("Bad message length " + length);
+        }
+        if (in.remaining() < 2 + length) {
+            return -1;
+        }
+        in.position(in.position() + 2);
+        return length;
+    }
+
+    static int indexOf(String gesture) {
+        for (int i = 0; i < GESTURES.length; i++) {
+            if (GESTURES[i].equals(gesture)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static String nameOf(int gesture) {
+        return gesture >= 0 && gesture < GESTURES.length ? GESTURES[gesture] : null;
+    }
+}
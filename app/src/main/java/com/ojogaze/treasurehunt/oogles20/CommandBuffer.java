@@ -0,0 +1,304 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+import android.opengl.GLES20;
+
+import com.ojogaze.treasurehunt.Utils;
+
+/**
+ * A list of GL commands, recorded without touching GL and replayed later on the GL thread.
+ * <p>
+ * <p>Recording does the scene traversal and matrix math, so it can run on any thread, such as a
+ * worker preparing the next frame while the GL thread submits this one. {@link #execute()} is
+ * then only a loop of GL calls. The recorded commands can also be counted, to see what a frame
+ * asks of GL.
+ * <p>
+ * <p>Commands are packed in fixed size int records, with their float arguments and meshes in
+ * side arrays. The arrays grow when full and are reused after {@link #reset()}, so recording
+ * stops allocating once the largest frame has been seen. Not thread safe, a buffer must be
+ * handed over between the recording and executing threads.
+ */
+public class CommandBuffer {
+    private static final String TAG = "CommandBuffer";
+
+    private static final int USE_PROGRAM = 0;
+    private static final int UNIFORM_MATRIX4 = 1;
+    private static final int UNIFORM3 = 2;
+    private static final int UNIFORM4 = 3;
+    private static final int VERTEX_ATTRIB4 = 4;
+    private static final int ENABLE_ATTRIBUTE = 5;
+    private static final int DISABLE_ATTRIBUTE = 6;
+    private static final int DRAW = 7;
+    private static final int COLOR_MASK = 8;
+    private static final int DEPTH_FUNC = 9;
+    private static final int BLEND = 10;
+    private static final int BIND_TEXTURE = 11;
+    private static final int UNIFORM1 = 12;
+    private static final int DEPTH_MASK = 13;
+
+    private static final int COMMAND_TYPES = 14;
+    private static final String NAMES[] = {"program", "matrix", "vec3", "vec4", "attrib",
+            "enable", "disable", "draw", "colormask", "depthfunc", "blend", "texture", "float",
+            "depthmask"};
+
+    // Op and up to four arguments.
+    private static final int RECORD = 5;
+
+    private int commands[];
+    private int commandCount = 0;
+    private float floats[];
+    private int floatCount = 0;
+    private Mesh meshes[];
+    private int meshCount = 0;
+
+    private final int counts[] = new int[COMMAND_TYPES];
+    // Program and texture in use after the commands so far, 0 if not known.
+    private int program = 0;
+    private int texture = 0;
+
+    public CommandBuffer(int capacity) {
+        capacity = Math.max(capacity, 1);
+        commands = new int[capacity * RECORD];
+        floats = new float[capacity * 4];
+        meshes = new Mesh[capacity];
+    }
+
+    /**
+     * Forgets all commands, keeping the memory for the next recording.
+     */
+    public void reset() {
+        for (int i = 0; i < meshCount; i++) {
+            meshes[i] = null;
+        }
+        commandCount = 0;
+        floatCount = 0;
+        meshCount = 0;
+        program = 0;
+        texture = 0;
+        for (int i = 0; i < COMMAND_TYPES; i++) {
+            counts[i] = 0;
+        }
+    }
+
+    /**
+     * Switches programs, unless the program is already in use.
+     */
+    public void useProgram(int program) {
+        if (program != this.program) {
+            add(USE_PROGRAM, program, 0, 0, 0);
+            this.program = program;
+        }
+    }
+
+    /**
+     * Binds a 2D texture to the active unit, unless it is already bound.
+     */
+    public void bindTexture(int texture) {
+        if (texture != this.texture) {
+            add(BIND_TEXTURE, texture, 0, 0, 0);
+            this.texture = texture;
+        }
+    }
+
+    /**
+     * @param offset Start of the matrix in the array, so matrices can be packed together.
+     */
+    public void uniformMatrix4(int location, float matrix[], int offset) {
+        if (location >= 0) {
+            add(UNIFORM_MATRIX4, location, putFloats(matrix, offset, 16), 0, 0);
+        }
+    }
+
+    public void uniform1(int location, float value) {
+        if (location >= 0) {
+            add(UNIFORM1, location, Float.floatToRawIntBits(value), 0, 0);
+        }
+    }
+
+    public void uniform3(int location, float vector[]) {
+        if (location >= 0) {
+            add(UNIFORM3, location, putFloats(vector, 0, 3), 0, 0);
+        }
+    }
+
+    public void uniform4(int location, float vector[]) {
+        if (location >= 0) {
+            add(UNIFORM4, location, putFloats(vector, 0, 4), 0, 0);
+        }
+    }
+
+    /**
+     * Sets the value a disabled attribute array reads for every vertex.
+     */
+    public void vertexAttrib4(int location, float vector[]) {
+        if (location >= 0) {
+            add(VERTEX_ATTRIB4, location, putFloats(vector, 0, 4), 0, 0);
+        }
+    }
+
+    /**
+     * Points an attribute at the mesh's data for the semantic and enables it.
+     */
+    public void enableAttribute(Mesh mesh, int semantic, int location) {
+        if (location >= 0 && mesh.has(semantic)) {
+            add(ENABLE_ATTRIBUTE, putMesh(mesh), semantic, location, 0);
+        }
+    }
+
+    public void disableAttribute(int location) {
+        if (location >= 0) {
+            add(DISABLE_ATTRIBUTE, location, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Draws from the enabled attributes, see {@link Mesh#draw(int, int, int)}.
+     */
+    public void draw(Mesh mesh, int mode, int first, int count) {
+        add(DRAW, putMesh(mesh), mode, first, count);
+    }
+
+    public void colorMask(boolean enabled) {
+        add(COLOR_MASK, enabled ? 1 : 0, 0, 0, 0);
+    }
+
+    public void depthFunc(int func) {
+        add(DEPTH_FUNC, func, 0, 0, 0);
+    }
+
+    public void depthMask(boolean enabled) {
+        add(DEPTH_MASK, enabled ? 1 : 0, 0, 0, 0);
+    }
+
+    /**
+     * @param enabled Whether to blend, with the given factors, or to replace.
+     */
+    public void blend(boolean enabled, int sourceFactor, int destinationFactor) {
+        add(BLEND, enabled ? 1 : 0, sourceFactor, destinationFactor, 0);
+    }
+
+    /**
+     * Replays the commands to GL. Must be called on the GL thread.
+     */
+    public void execute() {
+        for (int i = 0; i < commandCount * RECORD; i += RECORD) {
+            int a = commands[i + 1];
+            int b = commands[i + 2];
+            int c = commands[i + 3];
+            int d = commands[i + 4];
+            switch (commands[i]) {
+                case USE_PROGRAM:
+                    GLES20.glUseProgram(a);
+                    break;
+                case UNIFORM_MATRIX4:
+                    GLES20.glUniformMatrix4fv(a, 1, false, floats, b);
+                    break;
+                case UNIFORM3:
+                    GLES20.glUniform3fv(a, 1, floats, b);
+                    break;
+                case UNIFORM4:
+                    GLES20.glUniform4fv(a, 1, floats, b);
+                    break;
+                case VERTEX_ATTRIB4:
+                    GLES20.glVertexAttrib4fv(a, floats, b);
+                    break;
+                case ENABLE_ATTRIBUTE:
+                    meshes[a].enable(b, c);
+                    break;
+                case DISABLE_ATTRIBUTE:
+                    GLES20.glDisableVertexAttribArray(a);
+                    break;
+                case DRAW:
+                    meshes[a].draw(b, c, d);
+                    break;
+                case COLOR_MASK:
+                    boolean mask = a != 0;
+                    GLES20.glColorMask(mask, mask, mask, mask);
+                    break;
+                case DEPTH_FUNC:
+                    GLES20.glDepthFunc(a);
+                    break;
+                case BLEND:
+                    if (a != 0) {
+                        GLES20.glEnable(GLES20.GL_BLEND);
+                        GLES20.glBlendFunc(b, c);
+                    } else {
+                        GLES20.glDisable(GLES20.GL_BLEND);
+                    }
+                    break;
+                case BIND_TEXTURE:
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, a);
+                    break;
+                case UNIFORM1:
+                    GLES20.glUniform1f(a, Float.intBitsToFloat(b));
+                    break;
+                case DEPTH_MASK:
+                    GLES20.glDepthMask(a != 0);
+                    break;
+            }
+        }
+        Utils.checkGLError("executing " + commandCount + " commands");
+    }
+
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    public int getDrawCount() {
+        return counts[DRAW];
+    }
+
+    /**
+     * @return Number of commands of each kind, such as "12 draw, 36 matrix".
+     */
+    public String format() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < COMMAND_TYPES; i++) {
+            if (counts[i] > 0) {
+                builder.append(builder.length() > 0 ? ", " : "")
+                        .append(counts[i]).append(' ').append(NAMES[i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    private void add(int op, int a, int b, int c, int d) {
+        if ((commandCount + 1) * RECORD > commands.length) {
+            int grown[] = new int[commands.length * 2];
+            System.arraycopy(commands, 0, grown, 0, commandCount * RECORD);
+            commands = grown;
+        }
+        int i = commandCount * RECORD;
+        commands[i] = op;
+        commands[i + 1] = a;
+        commands[i + 2] = b;
+        commands[i + 3] = c;
+        commands[i + 4] = d;
+        commandCount++;
+        counts[op]++;
+    }
+
+    private int putFloats(float values[], int offset, int count) {
+        if (floatCount + count > floats.length) {
+            float grown[] = new float[Math.max(floats.length * 2, floatCount + count)];
+            System.arraycopy(floats, 0, grown, 0, floatCount);
+            floats = grown;
+        }
+        System.arraycopy(values, offset, floats, floatCount, count);
+        floatCount += count;
+        return floatCount - count;
+    }
+
+    private int putMesh(Mesh mesh) {
+        if (meshCount > 0 && meshes[meshCount - 1] == mesh) {
+            // Enable and draw of the same mesh follow each other.
+            return meshCount - 1;
+        }
+        if (meshCount == meshes.length) {
+            Mesh grown[] = new Mesh[meshes.length * 2];
+            System.arraycopy(meshes, 0, grown, 0, meshCount);
+            meshes = grown;
+        }
+        meshes[meshCount] = mesh;
+        return meshCount++;
+    }
+}
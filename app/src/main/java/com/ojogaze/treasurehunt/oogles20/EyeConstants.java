@@ -0,0 +1,74 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+/**
+ * Uniforms that are the same for every model drawn for an eye: the view and projection
+ * matrices and the light position.
+ * <p>
+ * <p>GL keeps uniform values per program, so these only need to be set once per program per
+ * eye, however many models use it. {@link #record(CommandBuffer, int, int, int)} records them
+ * the first time a program is used after {@link #set(float[], float[], float[])}, and nothing
+ * after that. This assumes the recorded commands are executed in the order recorded.
+ */
+public class EyeConstants {
+    // Programs used per eye, a linear search is faster than a map for this few.
+    private static final int PROGRAMS = 8;
+
+    public final float view[] = new float[16];
+    public final float projection[] = new float[16];
+    public final float lightPosInEyeSpace[] = new float[4];
+
+    // Bumped for every eye, so values recorded for a previous eye or GL context do not count.
+    private int generation = 0;
+
+    private int programs[] = new int[PROGRAMS];
+    private int generations[] = new int[PROGRAMS];
+    private int programCount = 0;
+
+    /**
+     * Starts a new eye.
+     */
+    public void set(float view[], float projection[], float lightPosInEyeSpace[]) {
+        System.arraycopy(view, 0, this.view, 0, 16);
+        System.arraycopy(projection, 0, this.projection, 0, 16);
+        System.arraycopy(lightPosInEyeSpace, 0, this.lightPosInEyeSpace, 0, 4);
+        generation++;
+    }
+
+    /**
+     * Records the eye's uniforms for a program, unless already recorded for this eye. The program
+     * must be in use.
+     *
+     * @param projectionParam Location of u_Projection, or -1 if the program does not use it.
+     * @param lightPosParam Location of u_LightPos, or -1 if the program does not use it.
+     */
+    public void record(CommandBuffer commands, int program, int projectionParam,
+                       int lightPosParam) {
+        int index = indexOf(program);
+        if (generations[index] == generation) {
+            return;
+        }
+        generations[index] = generation;
+        commands.uniformMatrix4(projectionParam, projection, 0);
+        commands.uniform3(lightPosParam, lightPosInEyeSpace);
+    }
+
+    private int indexOf(int program) {
+        for (int i = 0; i < programCount; i++) {
+            if (programs[i] == program) {
+                return i;
+            }
+        }
+        if (programCount == programs.length) {
+            int grownPrograms[] = new int[programs.length * 2];
+            int grownGenerations[] = new int[programs.length * 2];
+            System.arraycopy(programs, 0, grownPrograms, 0, programCount);
+            System.arraycopy(generations, 0, grownGenerations, 0, programCount);
+            programs = grownPrograms;
+            generations = grownGenerations;
+        }
+        programs[programCount] = program;
+        // Never the current generation, so the first use records the values.
+        generations[programCount] = generation - 1;
+        return programCount++;
+    }
+}
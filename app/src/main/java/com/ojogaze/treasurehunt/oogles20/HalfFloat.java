@@ -0,0 +1,63 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+/**
+ * Converts between float and IEEE 754 half precision, as used by OES_vertex_half_float.
+ * <p>
+ * <p>Plain Java, so that the mesh converter in tools packs meshes exactly like the app does.
+ */
+public final class HalfFloat {
+    // Largest finite half, 65504.
+    public static final short MAX_VALUE = 0x7BFF;
+
+    private HalfFloat() {
+    }
+
+    /**
+     * Rounds to the nearest half. Values too large for a half become infinity, NaN stays NaN.
+     */
+    public static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+        if (exponent >= 0x1F) {
+            // Overflow, or infinity and NaN.
+            return (short) (sign | 0x7C00 | (((bits >>> 23) & 0xFF) == 0xFF && mantissa != 0
+                    ? 0x200 : 0));
+        }
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                return (short) sign;
+            }
+            // Subnormal half.
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            if (((mantissa >> (shift - 1)) & 1) != 0) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = sign | (exponent << 10) | (mantissa >> 13);
+        if ((mantissa & 0x1000) != 0) {
+            // Round up, a carry into the exponent is still correct.
+            half++;
+        }
+        return (short) half;
+    }
+
+    public static float toFloat(short half) {
+        int bits = half & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+        if (exponent == 0) {
+            float value = mantissa / 1024f / 16384f;
+            return sign != 0 ? -value : value;
+        }
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,18 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+/**
+ * Appearance of a model: a tile of a {@link TextureAtlas} tinted with a color. Models sharing
+ * an atlas and program can use different materials without extra draw calls or vertex data.
+ */
+public class Material {
+    public final String name;
+    public final int tile;
+    // Red, green, blue and alpha, multiplied with the tile.
+    public final float color[];
+
+    public Material(String name, int tile, float color[]) {
+        this.name = name;
+        this.tile = tile;
+        this.color = color;
+    }
+}
@@ -0,0 +1,352 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.opengl.GLES20;
+
+import com.ojogaze.treasurehunt.Utils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Interleaved vertex data, either built in code or in the binary format written by the
+ * MeshConverter tool.
+ * <p>
+ * <p>Mesh assets are stored uncompressed in the APK, so they are memory mapped and the mapped
+ * buffer is handed to GL directly, without copying through Java arrays.
+ * <p>
+ * <p>A mesh can optionally be indexed and uploaded to GL buffer objects, in which case it is
+ * drawn from GPU memory instead of being copied from the client buffers on every draw.
+ */
+public class Mesh {
+    private static final String TAG = "Mesh";
+
+    private static final int MAGIC = 'O' | 'M' << 8 | 'S' << 16 | 'H' << 24;
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 20;
+    private static final int ATTRIBUTE_SIZE = 8;
+
+    // Checked on the GL thread the first time a mesh is drawn.
+    private static Boolean halfFloatSupported = null;
+
+    public final String name;
+    public final int vertexCount;
+    public final int indexCount;
+
+    private VertexLayout layout;
+    private ByteBuffer data;
+    private final ShortBuffer indices;
+
+    private int vertexBuffer = 0;
+    private int indexBuffer = 0;
+
+    // GL reads from a buffer's position, so keep a view per attribute.
+    private final ByteBuffer pointers[] = new ByteBuffer[VertexLayout.SEMANTICS];
+
+    /**
+     * Creates an empty mesh to be filled with {@link #put(int, int, float...)}.
+     */
+    public Mesh(String name, VertexLayout layout, int vertexCount) {
+        this(name, layout, vertexCount, 0);
+    }
+
+    /**
+     * Creates an empty indexed mesh to be filled with {@link #put(int, int, float...)} and
+     * {@link #putIndex(int, int)}. Triangles are drawn from the indices.
+     */
+    public Mesh(String name, VertexLayout layout, int vertexCount, int indexCount) {
+        this(name, layout, ByteBuffer.allocateDirect(vertexCount * layout.getStride())
+                .order(ByteOrder.nativeOrder()), vertexCount, indexCount,
+                indexCount > 0 ? ByteBuffer.allocateDirect(indexCount * 2)
+                        .order(ByteOrder.nativeOrder()).asShortBuffer() : null);
+    }
+
+    private Mesh(String name, VertexLayout layout, ByteBuffer data, int vertexCount,
+                 int indexCount, ShortBuffer indices) {
+        if (indexCount > 0 && vertexCount > 0xFFFF) {
+            // GLES 2.0 only guarantees unsigned short indices.
+            throw new IllegalArgumentException(name + " has too many vertices to index");
+        }
+        this.name = name;
+        this.vertexCount = vertexCount;
+        this.indexCount = indexCount;
+        this.indices = indices;
+        setData(layout, data);
+    }
+
+    private void setData(VertexLayout layout, ByteBuffer data) {
+        this.layout = layout;
+        this.data = data;
+        for (int semantic = 0; semantic < VertexLayout.SEMANTICS; semantic++) {
+            VertexLayout.Attribute attribute = layout.get(semantic);
+            if (attribute != null) {
+                data.position(attribute.offset);
+                pointers[semantic] = data.slice();
+            } else {
+                pointers[semantic] = null;
+            }
+        }
+        data.position(0);
+    }
+
+    private static Mesh read(String name, ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException(name + " is not a mesh");
+        }
+        int version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IOException(name + " has unsupported version " + version);
+        }
+        int attributeCount = buffer.getShort();
+        int vertexCount = buffer.getInt();
+        int stride = buffer.getInt();
+        int indexCount = buffer.getInt();
+
+        VertexLayout layout = new VertexLayout();
+        for (int i = 0; i < attributeCount; i++) {
+            int semantic = buffer.get();
+            int size = buffer.get();
+            boolean normalized = buffer.get() != 0;
+            buffer.get();
+            int type = buffer.getShort() & 0xFFFF;
+            int offset = buffer.getShort() & 0xFFFF;
+            if (semantic >= 0 && semantic < VertexLayout.SEMANTICS) {
+                layout.add(semantic, size, type, normalized, offset);
+            }
+        }
+        int dataOffset = HEADER_SIZE + attributeCount * ATTRIBUTE_SIZE;
+        int indexOffset = dataOffset + vertexCount * stride;
+        if (buffer.limit() < indexOffset + indexCount * 2) {
+            throw new IOException(name + " is truncated");
+        }
+        if (layout.getStride() != stride) {
+            throw new IOException(name + " has unexpected stride " + stride);
+        }
+        ShortBuffer indices = null;
+        if (indexCount > 0) {
+            buffer.position(indexOffset);
+            indices = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        }
+        buffer.position(dataOffset);
+        ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        return new Mesh(name, layout, data, vertexCount, indexCount, indices);
+    }
+
+    /**
+     * Memory maps a mesh from the app assets. The asset must be stored uncompressed.
+     *
+     * @param assetName Path of the mesh in the assets directory.
+     * @param context Context to load the asset from.
+     * @return The loaded mesh.
+     */
+    public static Mesh load(String assetName, Context context) throws IOException {
+        if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            // Vertex data is passed to GL as is, which expects native order.
+            throw new IOException("Mesh assets are little endian");
+        }
+        AssetFileDescriptor descriptor = context.getAssets().openFd(assetName);
+        try {
+            FileInputStream stream = descriptor.createInputStream();
+            try {
+                FileChannel channel = stream.getChannel();
+                // The mapping remains valid after the channel is closed.
+                return read(assetName, channel.map(FileChannel.MapMode.READ_ONLY,
+                        descriptor.getStartOffset(), descriptor.getLength()));
+            } finally {
+                stream.close();
+            }
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    public VertexLayout getLayout() {
+        return layout;
+    }
+
+    public boolean has(int semantic) {
+        return pointers[semantic] != null;
+    }
+
+    /**
+     * Writes the components of one attribute of a vertex, packing them as the layout says.
+     */
+    public void put(int vertex, int semantic, float... values) {
+        for (int i = 0; i < values.length; i++) {
+            layout.put(data, vertex, semantic, i, values[i]);
+        }
+    }
+
+    public void putIndex(int index, int vertex) {
+        indices.put(index, (short) vertex);
+    }
+
+    public float get(int vertex, int semantic, int component) {
+        return layout.get(data, vertex, semantic, component);
+    }
+
+    /**
+     * @return Bytes of vertex and index data in this mesh.
+     */
+    public int getSizeBytes() {
+        return vertexCount * layout.getStride() + indexCount * 2;
+    }
+
+    public boolean isUploaded() {
+        return vertexBuffer != 0;
+    }
+
+    /**
+     * Copies the mesh into GL buffer objects. Must be called on the GL thread.
+     */
+    public void upload() {
+        if (vertexBuffer != 0) {
+            return;
+        }
+        repackIfUnsupported();
+        int buffers[] = new int[2];
+        GLES20.glGenBuffers(indices != null ? 2 : 1, buffers, 0);
+        vertexBuffer = buffers[0];
+        data.position(0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertexCount * layout.getStride(), data,
+                GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        if (indices != null) {
+            indexBuffer = buffers[1];
+            indices.position(0);
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+            GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexCount * 2, indices,
+                    GLES20.GL_STATIC_DRAW);
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        }
+        Utils.checkGLError("uploading " + name);
+    }
+
+    /**
+     * Deletes the GL buffer objects, the mesh is drawn from client memory until uploaded again.
+     * Must be called on the GL thread.
+     */
+    public void deleteUpload() {
+        if (vertexBuffer != 0) {
+            GLES20.glDeleteBuffers(indexBuffer != 0 ? 2 : 1,
+                    new int[] {vertexBuffer, indexBuffer}, 0);
+        }
+        vertexBuffer = 0;
+        indexBuffer = 0;
+    }
+
+    /**
+     * Forgets the GL buffer objects without deleting them, after the GL context was lost.
+     */
+    public void onContextLost() {
+        vertexBuffer = 0;
+        indexBuffer = 0;
+    }
+
+    /**
+     * Copies the vertex data into a new layout, converting each component.
+     */
+    public Mesh repack(VertexLayout target) {
+        Mesh mesh = new Mesh(name, target, vertexCount, indexCount);
+        for (int i = 0; i < indexCount; i++) {
+            mesh.indices.put(i, indices.get(i));
+        }
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            for (int semantic = 0; semantic < VertexLayout.SEMANTICS; semantic++) {
+                VertexLayout.Attribute attribute = layout.get(semantic);
+                if (attribute != null && target.get(semantic) != null) {
+                    for (int i = 0; i < attribute.size; i++) {
+                        target.put(mesh.data, vertex, semantic, i, get(vertex, semantic, i));
+                    }
+                }
+            }
+        }
+        return mesh;
+    }
+
+    /**
+     * Points the given shader attribute at this mesh's data for the semantic and enables it.
+     * Must be called on the GL thread.
+     *
+     * @return false if the mesh does not have the semantic or the shader does not use it.
+     */
+    boolean enable(int semantic, int location) {
+        repackIfUnsupported();
+        VertexLayout.Attribute attribute = layout.get(semantic);
+        if (attribute == null || location < 0) {
+            return false;
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer);
+        if (vertexBuffer != 0) {
+            GLES20.glVertexAttribPointer(location, attribute.size, attribute.type,
+                    attribute.normalized, layout.getStride(), attribute.offset);
+        } else {
+            GLES20.glVertexAttribPointer(location, attribute.size, attribute.type,
+                    attribute.normalized, layout.getStride(), pointers[semantic]);
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glEnableVertexAttribArray(location);
+        return true;
+    }
+
+    /**
+     * Draws triangles from the enabled attributes. Must be called on the GL thread.
+     *
+     * @param first First vertex, or first index for indexed meshes.
+     * @param count Maximum number of vertices or indices to draw.
+     * @return Number of vertices or indices drawn.
+     */
+    int draw(int first, int count) {
+        return draw(GLES20.GL_TRIANGLES, first, count);
+    }
+
+    /**
+     * Draws primitives of the given mode, such as GL_POINTS, from the enabled attributes.
+     */
+    int draw(int mode, int first, int count) {
+        if (indices == null) {
+            count = Math.min(count, vertexCount - first);
+            GLES20.glDrawArrays(mode, first, count);
+            RenderStats.addDraw(count, count * layout.getStride());
+            return count;
+        }
+
+        count = Math.min(count, indexCount - first);
+        if (indexBuffer != 0) {
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+            GLES20.glDrawElements(mode, count, GLES20.GL_UNSIGNED_SHORT, first * 2);
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        } else {
+            indices.position(first);
+            GLES20.glDrawElements(mode, count, GLES20.GL_UNSIGNED_SHORT, indices);
+        }
+        // Shared vertices are fetched once, unless they fall out of the post transform cache.
+        RenderStats.addDraw(count, Math.min(count, vertexCount) * layout.getStride() + count * 2);
+        return count;
+    }
+
+    private void repackIfUnsupported() {
+        if (layout.uses(VertexLayout.GL_HALF_FLOAT_OES) && !isHalfFloatSupported()) {
+            Mesh floats = repack(layout.withoutHalfFloats());
+            setData(floats.layout, floats.data);
+            deleteUpload();
+        }
+    }
+
+    private static boolean isHalfFloatSupported() {
+        if (halfFloatSupported == null) {
+            String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+            halfFloatSupported =
+                    extensions != null && extensions.contains("GL_OES_vertex_half_float");
+        }
+        return halfFloatSupported;
+    }
+}
@@ -0,0 +1,178 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Shares mesh assets between models and keeps them resident in GPU memory.
+ * <p>
+ * <p>Meshes are loaded on a background executor the first time they are acquired and uploaded
+ * to GL buffers on the next {@link #upload()} from the GL thread. Each acquire must be paired
+ * with a release. Released meshes stay cached for later acquires until the GPU memory they use
+ * goes over budget, when the least recently used ones are deleted.
+ * <p>
+ * <p>A mesh that fails to load is logged and stays failed until it is released by everyone who
+ * acquired it, so that a later acquire loads it again.
+ * <p>
+ * <p>Assets ending in ".obj" are parsed and indexed at load time, anything else is read as a
+ * binary mesh, which the converter already indexed.
+ */
+public class MeshRegistry {
+    private static final String TAG = "MeshRegistry";
+
+    private final Context context;
+    private final ExecutorService executor;
+    private final long budgetBytes;
+
+    // In access order, so iteration starts with the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long residentBytes = 0;
+
+    private static class Entry {
+        final Future<Mesh> mesh;
+        int references = 0;
+        int uploadedBytes = 0;
+        boolean failed = false;
+
+        Entry(Future<Mesh> mesh) {
+            this.mesh = mesh;
+        }
+    }
+
+    /**
+     * @param executor Background executor to load meshes on.
+     * @param budgetBytes GPU memory the registry may keep for released meshes.
+     */
+    public MeshRegistry(Context context, ExecutorService executor, long budgetBytes) {
+        this.context = context.getApplicationContext();
+        this.executor = executor;
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Gets a shared mesh, loading it in the background if it is not cached.
+     *
+     * @param assetName Path of the mesh in the assets directory.
+     * @return The mesh, once loaded. It is drawn from client memory until uploaded.
+     */
+    public synchronized Future<Mesh> acquire(final String assetName) {
+        Entry entry = entries.get(assetName);
+        if (entry == null) {
+            entry = new Entry(executor.submit(new Callable<Mesh>() {
+                @Override
+                public Mesh call() throws IOException {
+                    return assetName.endsWith(".obj")
+                            ? ObjReader.read(assetName, context.getAssets().open(assetName))
+                            : Mesh.load(assetName, context);
+                }
+            }));
+            entries.put(assetName, entry);
+        }
+        entry.references++;
+        return entry.mesh;
+    }
+
+    /**
+     * Returns a mesh from {@link #acquire(String)}. It may be evicted once no one uses it.
+     *
+     * @throws IllegalStateException if the mesh was released more often than acquired.
+     */
+    public synchronized void release(String assetName) {
+        Entry entry = entries.get(assetName);
+        if (entry == null || entry.references == 0) {
+            throw new IllegalStateException(assetName + " released more than acquired");
+        }
+        entry.references--;
+    }
+
+    /**
+     * Uploads meshes that finished loading and evicts unused ones over budget. Call once per
+     * frame on the GL thread.
+     */
+    public synchronized void upload() {
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+             it.hasNext(); ) {
+            Map.Entry<String, Entry> item = it.next();
+            Entry entry = item.getValue();
+            if (!entry.mesh.isDone()) {
+                continue;
+            }
+            Mesh mesh = entry.failed ? null : getLoaded(item.getKey(), entry);
+            entry.failed = mesh == null;
+            if (entry.references == 0 && entry.uploadedBytes == 0) {
+                // Failed, or loaded after its last release, so nothing worth keeping. A later
+                // acquire loads it again.
+                it.remove();
+            } else if (mesh != null && entry.uploadedBytes == 0) {
+                mesh.upload();
+                entry.uploadedBytes = mesh.getSizeBytes();
+                residentBytes += entry.uploadedBytes;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Forgets all GPU buffers after the GL context was lost, meshes will be uploaded again.
+     */
+    public synchronized void onContextLost() {
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            Entry entry = item.getValue();
+            if (entry.uploadedBytes > 0) {
+                Mesh mesh = getLoaded(item.getKey(), entry);
+                if (mesh != null) {
+                    mesh.onContextLost();
+                }
+                entry.uploadedBytes = 0;
+            }
+        }
+        residentBytes = 0;
+    }
+
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    private void evict() {
+        long releasedBytes = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.references == 0) {
+                releasedBytes += entry.uploadedBytes;
+            }
+        }
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+             it.hasNext() && releasedBytes > budgetBytes; ) {
+            Map.Entry<String, Entry> item = it.next();
+            Entry entry = item.getValue();
+            if (entry.references > 0 || entry.uploadedBytes == 0) {
+                continue;
+            }
+            Mesh mesh = getLoaded(item.getKey(), entry);
+            if (mesh != null) {
+                mesh.deleteUpload();
+            }
+            releasedBytes -= entry.uploadedBytes;
+            residentBytes -= entry.uploadedBytes;
+            it.remove();
+            Log.i(TAG, String.format("Evicted %s, %d bytes resident", item.getKey(),
+                    residentBytes));
+        }
+    }
+
+    private static Mesh getLoaded(String assetName, Entry entry) {
+        try {
+            return entry.mesh.get();
+        } catch (Exception e) {
+            Log.e(TAG, "Could not load " + assetName, e);
+            return null;
+        }
+    }
+}
@@ -5,10 +5,6 @@ import android.opengl.Matrix;
 
 import com.ojogaze.treasurehunt.Utils;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 /**
  * Created by abhi on 5/19/17.
  */
@@ -16,7 +12,8 @@ import java.nio.FloatBuffer;
 public class Model {
     private static final String TAG = "Model20";
 
-    private static final int COORDS_PER_VERTEX = 3;
+    // Commands of a single draw.
+    private static final int IMMEDIATE_COMMANDS = 16;
 
     // Convenience vector for extracting the position from a matrix via multiplication.
     private static final float[] POS_MATRIX_MULTIPLY_VEC = {0, 0, 0, 1.0f};
@@ -25,24 +22,39 @@ public class Model {
     private int programId = 0;
 
     private final int drawArrayStart;
-    private final int drawArrayCount; // 36 for cube
+    private final int drawArrayCount;
 
     public final float[] value;
 
-    private FloatBuffer vertices;
-    private FloatBuffer colors;
-    private FloatBuffer normals;
+    private Mesh mesh;
+
+    // Used for every vertex when there is no per vertex color.
+    final float color[] = {1.0f, 1.0f, 1.0f, 1.0f};
+
+    // Tile of the atlas that texture coordinates map to, as offset and scale.
+    private TextureAtlas atlas;
+    final float atlasRect[] = {0, 0, 1, 1};
+
+    // Reused by draw(), which replays right away.
+    private CommandBuffer commands;
+    private float modelView[];
+
+    // Whether a RenderQueue lays down this model's depth before shading it.
+    private boolean depthPrepass = false;
 
     private int positionParam;
     private int normalParam;
     private int colorParam;
+    private int texCoordParam;
+    private int atlasRectParam;
+    private int textureParam;
     private int modelParam;
     private int modelViewParam;
-    private int modelViewProjectionParam;
+    private int projectionParam;
     private int lightPosParam;
 
     public Model(String name) {
-        this(name, new float[16], 0, 24);  // 36 for cube
+        this(name, new float[16], 0, Integer.MAX_VALUE);
     }
 
     public Model(String name, int drawArrayStart, int drawArrayCount) {
@@ -50,9 +62,13 @@ public class Model {
     }
 
     public Model(String name, float value[]) {
-        this(name, value, 0, 24);  // 36 for cube
+        this(name, value, 0, Integer.MAX_VALUE);
     }
 
+    /**
+     * @param drawArrayStart First vertex of the mesh to draw, or first index if it is indexed.
+     * @param drawArrayCount Number of vertices or indices to draw, at most up to the end.
+     */
     public Model(String name, float value[], int drawArrayStart, int drawArrayCount) {
         this.name = name;
         this.value = value;
@@ -61,25 +77,54 @@ public class Model {
         this.drawArrayCount = drawArrayCount;
     }
 
-    public void setVertices(float[] vertices) {
-        this.vertices = ByteBuffer.allocateDirect(vertices.length * 4)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        this.vertices.put(vertices);
-        this.vertices.position(0);
+    /**
+     * Sets the vertex data. The mesh's layout says how each attribute is packed.
+     */
+    public void setMesh(Mesh mesh) {
+        this.mesh = mesh;
     }
 
-    public void setColors(float[] colors) {
-        this.colors = ByteBuffer.allocateDirect(colors.length * 4)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        this.colors.put(colors);
-        this.colors.position(0);
+    public Mesh getMesh() {
+        return mesh;
     }
 
-    public void setNormals(float[] normals) {
-        this.normals = ByteBuffer.allocateDirect(normals.length * 4)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        this.normals.put(normals);
-        this.normals.position(0);
+    /**
+     * Sets a single color used when the mesh has no per vertex colors.
+     *
+     * @param color Red, green, blue and alpha.
+     */
+    public void setColor(float[] color) {
+        System.arraycopy(color, 0, this.color, 0, 4);
+    }
+
+    /**
+     * Marks the model as expensive to shade, so that a {@link RenderQueue} first draws its depth
+     * only and then shades just the pixels that remain visible.
+     */
+    public void setDepthPrepass(boolean depthPrepass) {
+        this.depthPrepass = depthPrepass;
+    }
+
+    public boolean hasDepthPrepass() {
+        return depthPrepass;
+    }
+
+    /**
+     * Sets the texture that materials pick their tiles from.
+     */
+    public void setAtlas(TextureAtlas atlas) {
+        this.atlas = atlas;
+    }
+
+    /**
+     * Sets the color and the atlas tile, so instances of a model can look different while
+     * sharing its program, mesh and texture.
+     */
+    public void setMaterial(Material material) {
+        setColor(material.color);
+        if (atlas != null) {
+            atlas.getRect(material.tile, atlasRect);
+        }
     }
 
     public void attachShaders(Shader[] shaders) {
@@ -94,47 +139,106 @@ public class Model {
 
         modelParam = GLES20.glGetUniformLocation(programId, "u_Model");
         modelViewParam = GLES20.glGetUniformLocation(programId, "u_MVMatrix");
-        modelViewProjectionParam = GLES20.glGetUniformLocation(programId, "u_MVP");
+        projectionParam = GLES20.glGetUniformLocation(programId, "u_Projection");
         lightPosParam = GLES20.glGetUniformLocation(programId, "u_LightPos");
+        atlasRectParam = GLES20.glGetUniformLocation(programId, "u_AtlasRect");
+        textureParam = GLES20.glGetUniformLocation(programId, "u_Texture");
+        if (textureParam >= 0) {
+            GLES20.glUniform1i(textureParam, 0);
+        }
 
         positionParam = GLES20.glGetAttribLocation(programId, "a_Position");
         normalParam = GLES20.glGetAttribLocation(programId, "a_Normal");
         colorParam = GLES20.glGetAttribLocation(programId, "a_Color");
+        texCoordParam = GLES20.glGetAttribLocation(programId, "a_TexCoord");
 
         Utils.checkGLError(name + " program params");
     }
 
+    /**
+     * Uses the program of another model, which already has its shaders attached, instead of
+     * linking the same shaders again. Models sharing a program draw one after the other without
+     * switching programs.
+     */
+    public void shareProgram(Model other) {
+        programId = other.programId;
+        modelParam = other.modelParam;
+        modelViewParam = other.modelViewParam;
+        projectionParam = other.projectionParam;
+        lightPosParam = other.lightPosParam;
+        atlasRectParam = other.atlasRectParam;
+        textureParam = other.textureParam;
+        positionParam = other.positionParam;
+        normalParam = other.normalParam;
+        colorParam = other.colorParam;
+        texCoordParam = other.texCoordParam;
+    }
+
     /**
      * Draw the model.
      * <p>
-     * <p>This feeds in data for the model into the shader. Note that this doesn't feed in data
-     * about position of the light, so if we rewrite our code to draw the model first,
-     * the lighting might look strange.
+     * <p>This feeds in data for the model into the shader. The view, projection and light
+     * position come from the eye, and are only set if the program has not had them for this eye
+     * yet.
      */
-    public void draw(Model modelView, Model modelViewProjection, Position lightPosInEyeSpace) {
-        GLES20.glUseProgram(programId);
+    public void draw(EyeConstants eye) {
+        if (commands == null) {
+            commands = new CommandBuffer(IMMEDIATE_COMMANDS);
+            modelView = new float[16];
+        }
+        Matrix.multiplyMM(modelView, 0, eye.view, 0, value, 0);
+        commands.reset();
+        record(commands, eye, mesh, color, atlasRect, value, 0, modelView, 0);
+        commands.execute();
+    }
 
-        // Set ModelView, MVP, position, normals, and color.
-        GLES20.glUniform3fv(lightPosParam, 1, lightPosInEyeSpace.value, 0);
-        GLES20.glUniformMatrix4fv(modelParam, 1, false, value, 0);
-        GLES20.glUniformMatrix4fv(modelViewParam, 1, false, modelView.value, 0);
-        GLES20.glUniformMatrix4fv(modelViewProjectionParam, 1, false, modelViewProjection.value, 0);
-        GLES20.glVertexAttribPointer(
-                positionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, vertices);
-        GLES20.glVertexAttribPointer(normalParam, 3, GLES20.GL_FLOAT, false, 0, normals);
-        GLES20.glVertexAttribPointer(colorParam, 4, GLES20.GL_FLOAT, false, 0, colors);
+    /**
+     * Records a draw with the given state instead of the model's own, for draws queued earlier.
+     *
+     * @param model Array holding the model matrix at modelOffset.
+     * @param modelView Array holding the product of view and model matrix at modelViewOffset.
+     */
+    void record(CommandBuffer commands, EyeConstants eye, Mesh mesh, float color[],
+                float atlasRect[], float model[], int modelOffset, float modelView[],
+                int modelViewOffset) {
+        commands.useProgram(programId);
+        eye.record(commands, programId, projectionParam, lightPosParam);
+        if (atlas != null && atlas.getTextureId() != 0) {
+            commands.bindTexture(atlas.getTextureId());
+            commands.uniform4(atlasRectParam, atlasRect);
+        }
 
-        GLES20.glEnableVertexAttribArray(positionParam);
-        GLES20.glEnableVertexAttribArray(normalParam);
-        GLES20.glEnableVertexAttribArray(colorParam);
+        // Set Model, ModelView, position, normals, and color.
+        commands.uniformMatrix4(modelParam, model, modelOffset);
+        commands.uniformMatrix4(modelViewParam, modelView, modelViewOffset);
+        commands.enableAttribute(mesh, VertexLayout.POSITION, positionParam);
+        commands.enableAttribute(mesh, VertexLayout.NORMAL, normalParam);
+        if (mesh.has(VertexLayout.COLOR)) {
+            commands.enableAttribute(mesh, VertexLayout.COLOR, colorParam);
+        } else {
+            // A disabled attribute array reads the same constant value for every vertex.
+            commands.vertexAttrib4(colorParam, color);
+        }
+        commands.enableAttribute(mesh, VertexLayout.TEXCOORD, texCoordParam);
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, drawArrayStart, drawArrayCount);
+        commands.draw(mesh, GLES20.GL_TRIANGLES, drawArrayStart, drawArrayCount);
 
-        GLES20.glDisableVertexAttribArray(positionParam);
-        GLES20.glDisableVertexAttribArray(normalParam);
-        GLES20.glDisableVertexAttribArray(colorParam);
+        commands.disableAttribute(positionParam);
+        commands.disableAttribute(normalParam);
+        commands.disableAttribute(colorParam);
+        commands.disableAttribute(texCoordParam);
+    }
 
-        Utils.checkGLError("drawing " + name);
+    /**
+     * Records a draw of only the positions of the model's range of the mesh, with a program that
+     * is already in use and has its projection set, such as a depth only one.
+     */
+    void recordPositions(CommandBuffer commands, Mesh mesh, float modelView[],
+                         int modelViewOffset, int modelViewParam, int positionParam) {
+        commands.uniformMatrix4(modelViewParam, modelView, modelViewOffset);
+        commands.enableAttribute(mesh, VertexLayout.POSITION, positionParam);
+        commands.draw(mesh, GLES20.GL_TRIANGLES, drawArrayStart, drawArrayCount);
+        commands.disableAttribute(positionParam);
     }
 
     public void rotate(float angle, float x, float y, float z) {
@@ -0,0 +1,221 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses Wavefront OBJ text into an indexed triangle list.
+ * <p>
+ * <p>Face corners that share position, texture coordinates and normal become a single vertex,
+ * so the index buffer lets GL reuse transformed vertices. Vertex colors use the common
+ * "v x y z r g b [a]" extension. Faces without normals get flat face normals.
+ * <p>
+ * <p>Plain Java, shared by {@link ObjReader} at runtime and by the mesh converter in tools.
+ */
+public class ObjParser {
+    private static final float WHITE[] = {1, 1, 1, 1};
+    private static final float NO_TEXCOORD[] = {0, 0};
+
+    private final List<float[]> positions = new ArrayList<>();
+    private final List<float[]> colors = new ArrayList<>();
+    private final List<float[]> normals = new ArrayList<>();
+    private final List<float[]> texCoords = new ArrayList<>();
+
+    // Unique (position, normal, texture coordinate) triples in the order they were first seen.
+    private final Map<Long, Integer> vertexIndex = new HashMap<>();
+    private final List<int[]> vertices = new ArrayList<>();
+    private final List<Integer> indices = new ArrayList<>();
+    private boolean hasColors = false;
+    private boolean hasTexCoords = false;
+
+    private ObjParser() {
+    }
+
+    /**
+     * @param name Name for error messages.
+     * @param stream OBJ text, closed when done.
+     */
+    public static ObjParser parse(String name, InputStream stream) throws IOException {
+        ObjParser parser = new ObjParser();
+        BufferedReader lines = new BufferedReader(new InputStreamReader(stream));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = lines.readLine()) != null) {
+                lineNumber++;
+                try {
+                    parser.parse(line.trim());
+                } catch (RuntimeException e) {
+                    throw new IOException(name + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        } finally {
+            lines.close();
+        }
+        return parser;
+    }
+
+    public int getVertexCount() {
+        return vertices.size();
+    }
+
+    public int getIndexCount() {
+        return indices.size();
+    }
+
+    public int getIndex(int i) {
+        return indices.get(i);
+    }
+
+    public boolean hasColors() {
+        return hasColors;
+    }
+
+    public boolean hasTexCoords() {
+        return hasTexCoords;
+    }
+
+    public float[] getPosition(int vertex) {
+        return positions.get(vertices.get(vertex)[0]);
+    }
+
+    public float[] getNormal(int vertex) {
+        return normals.get(vertices.get(vertex)[1]);
+    }
+
+    /**
+     * @return Color of the vertex, white if the OBJ has none for it.
+     */
+    public float[] getColor(int vertex) {
+        float color[] = colors.get(vertices.get(vertex)[0]);
+        return color != null ? color : WHITE;
+    }
+
+    /**
+     * @return Texture coordinates of the vertex, 0, 0 if the OBJ has none for it.
+     */
+    public float[] getTexCoord(int vertex) {
+        int texCoord = vertices.get(vertex)[2];
+        return texCoord >= 0 ? texCoords.get(texCoord) : NO_TEXCOORD;
+    }
+
+    private void parse(String line) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return;
+        }
+        String parts[] = line.split("\\s+");
+        switch (parts[0]) {
+            case "v":
+                positions.add(floats(parts, 1, 3));
+                if (parts.length >= 7) {
+                    float color[] = {1, 1, 1, 1};
+                    for (int i = 4; i < parts.length && i < 8; i++) {
+                        color[i - 4] = Float.parseFloat(parts[i]);
+                    }
+                    colors.add(color);
+                    hasColors = true;
+                } else {
+                    colors.add(null);
+                }
+                break;
+            case "vn":
+                normals.add(floats(parts, 1, 3));
+                break;
+            case "vt":
+                texCoords.add(floats(parts, 1, 2));
+                break;
+            case "f":
+                int corners[][] = new int[parts.length - 1][];
+                for (int i = 1; i < parts.length; i++) {
+                    corners[i - 1] = corner(parts[i]);
+                }
+                int faceNormal = -1;
+                for (int corner[] : corners) {
+                    if (corner[1] < 0) {
+                        faceNormal = addFaceNormal(corners);
+                        break;
+                    }
+                }
+                // Fan triangulation, fine for the convex polygons exporters write.
+                for (int i = 1; i + 1 < corners.length; i++) {
+                    addVertex(corners[0], faceNormal);
+                    addVertex(corners[i], faceNormal);
+                    addVertex(corners[i + 1], faceNormal);
+                }
+                break;
+            default:
+                // Groups, materials and smoothing are not used.
+                break;
+        }
+    }
+
+    private void addVertex(int corner[], int faceNormal) {
+        int normal = corner[1] >= 0 ? corner[1] : faceNormal;
+        // Meshes are limited to short indices, far below 21 bits per element.
+        long key = ((long) corner[0] << 42) | ((long) (normal & 0x1FFFFF) << 21)
+                | (corner[2] & 0x1FFFFF);
+        Integer index = vertexIndex.get(key);
+        if (index == null) {
+            index = vertices.size();
+            vertices.add(new int[] {corner[0], normal, corner[2]});
+            vertexIndex.put(key, index);
+        }
+        indices.add(index);
+    }
+
+    private int[] corner(String spec) {
+        String parts[] = spec.split("/");
+        int position = index(parts[0], positions.size());
+        int texCoord = parts.length > 1 && !parts[1].isEmpty()
+                ? index(parts[1], texCoords.size()) : -1;
+        int normal = parts.length > 2 && !parts[2].isEmpty()
+                ? index(parts[2], normals.size()) : -1;
+        hasTexCoords |= texCoord >= 0;
+        return new int[] {position, normal, texCoord};
+    }
+
+    private static int index(String value, int count) {
+        int index = Integer.parseInt(value);
+        // OBJ indices are 1 based, negative ones count back from the last element.
+        index = index < 0 ? count + index : index - 1;
+        if (index < 0 || index >= count) {
+            throw new IllegalArgumentException("Index out of range " + value);
+        }
+        return index;
+    }
+
+    private int addFaceNormal(int corners[][]) {
+        float a[] = positions.get(corners[0][0]);
+        float b[] = positions.get(corners[1][0]);
+        float c[] = positions.get(corners[2][0]);
+        float u[] = {b[0] - a[0], b[1] - a[1], b[2] - a[2]};
+        float v[] = {c[0] - a[0], c[1] - a[1], c[2] - a[2]};
+        float n[] = {u[1] * v[2] - u[2] * v[1], u[2] * v[0] - u[0] * v[2],
+                u[0] * v[1] - u[1] * v[0]};
+        float length = (float) Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+        if (length > 0) {
+            n[0] /= length;
+            n[1] /= length;
+            n[2] /= length;
+        }
+        normals.add(n);
+        return normals.size() - 1;
+    }
+
+    private static float[] floats(String parts[], int start, int count) {
+        if (parts.length < start + count) {
+            throw new IllegalArgumentException("Expected " + count + " values");
+        }
+        float values[] = new float[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Float.parseFloat(parts[start + i]);
+        }
+        return values;
+    }
+}
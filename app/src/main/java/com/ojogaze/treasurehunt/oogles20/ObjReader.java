@@ -0,0 +1,50 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+import android.opengl.GLES20;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads Wavefront OBJ meshes into indexed meshes, see {@link ObjParser}.
+ */
+public class ObjReader {
+    private ObjReader() {
+    }
+
+    /**
+     * Parses an OBJ file. Intended to run on a background thread.
+     *
+     * @param name Name for the mesh.
+     * @param stream OBJ text, closed when done.
+     * @return Indexed mesh with float positions, byte normals, and byte colors and float
+     *         texture coordinates if present.
+     */
+    public static Mesh read(String name, InputStream stream) throws IOException {
+        ObjParser obj = ObjParser.parse(name, stream);
+        VertexLayout layout = new VertexLayout()
+                .add(VertexLayout.POSITION, 3, GLES20.GL_FLOAT, false)
+                .add(VertexLayout.NORMAL, 3, GLES20.GL_BYTE, true);
+        if (obj.hasColors()) {
+            layout.add(VertexLayout.COLOR, 4, GLES20.GL_UNSIGNED_BYTE, true);
+        }
+        if (obj.hasTexCoords()) {
+            layout.add(VertexLayout.TEXCOORD, 2, GLES20.GL_FLOAT, false);
+        }
+        Mesh mesh = new Mesh(name, layout, obj.getVertexCount(), obj.getIndexCount());
+        for (int i = 0; i < obj.getVertexCount(); i++) {
+            mesh.put(i, VertexLayout.POSITION, obj.getPosition(i));
+            mesh.put(i, VertexLayout.NORMAL, obj.getNormal(i));
+            if (obj.hasColors()) {
+                mesh.put(i, VertexLayout.COLOR, obj.getColor(i));
+            }
+            if (obj.hasTexCoords()) {
+                mesh.put(i, VertexLayout.TEXCOORD, obj.getTexCoord(i));
+            }
+        }
+        for (int i = 0; i < obj.getIndexCount(); i++) {
+            mesh.putIndex(i, obj.getIndex(i));
+        }
+        return mesh;
+    }
+}
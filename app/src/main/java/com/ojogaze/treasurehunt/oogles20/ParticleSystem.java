@@ -0,0 +1,232 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import com.ojogaze.treasurehunt.Utils;
+
+import java.util.Random;
+
+/**
+ * Bursts of particles drawn as point sprites, with the motion computed in the vertex shader.
+ * <p>
+ * <p>Each particle only has a fixed initial velocity and lifetime, written once into a GL buffer
+ * when the system is created. Per frame the CPU records a few uniforms per burst, the time
+ * since the burst and where it is, and a draw of the buffer into the eye's
+ * {@link CommandBuffer}, so thousands of particles cost no more CPU time than a handful.
+ * <p>
+ * <p>Bursts come from a fixed pool of such buffers, each with its own random particles, used
+ * round robin. When all are in use the oldest burst is cut short and its buffer reused.
+ */
+public class ParticleSystem {
+    private static final String TAG = "ParticleSystem";
+
+    private static final float MIN_SPEED = 1.0f;
+    private static final float MAX_SPEED = 4.0f;
+    private static final float MIN_LIFETIME_SECONDS = 0.6f;
+    private static final float MAX_LIFETIME_SECONDS = 1.5f;
+
+    // Velocity and lifetime fit half floats, halving the bytes fetched per particle.
+    private static final VertexLayout LAYOUT = new VertexLayout()
+            .add(VertexLayout.POSITION, 4, VertexLayout.GL_HALF_FLOAT_OES, false);
+
+    private final Burst bursts[];
+    private final int maxParticles;
+    private int particleCount;
+    private int nextBurst = 0;
+    private float pointSize = 40.0f;
+
+    private int programId = 0;
+    private int positionParam;
+    private int modelViewProjectionParam;
+    private int timeParam;
+    private int pointSizeParam;
+    private int colorParam;
+
+    private final Random random;
+    private final float model[] = new float[16];
+    private final float modelView[] = new float[16];
+    private final float modelViewProjection[] = new float[16];
+
+    private static class Burst {
+        final Mesh particles;
+        final float position[] = new float[3];
+        final float color[] = new float[4];
+        // Mirroring the buffer makes bursts from the same buffer look different.
+        float mirrorX = 1;
+        float mirrorZ = 1;
+        long startNanos = 0;
+        boolean active = false;
+
+        Burst(Mesh particles) {
+            this.particles = particles;
+        }
+    }
+
+    /**
+     * @param maxParticles Particles in each burst buffer.
+     * @param poolSize Number of buffers, which is how many bursts can be alive at once.
+     * @param seed Seed for the particle velocities and lifetimes.
+     */
+    public ParticleSystem(int maxParticles, int poolSize, long seed) {
+        this.maxParticles = maxParticles;
+        this.particleCount = maxParticles;
+        random = new Random(seed);
+        bursts = new Burst[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            Mesh particles = new Mesh("Particles" + i, LAYOUT, maxParticles);
+            for (int particle = 0; particle < maxParticles; particle++) {
+                // Uniform direction on the sphere, speed biased towards the slower end.
+                float z = random.nextFloat() * 2 - 1;
+                float angle = random.nextFloat() * 2 * (float) Math.PI;
+                float radius = (float) Math.sqrt(1 - z * z);
+                float speed = MIN_SPEED + (MAX_SPEED - MIN_SPEED) * random.nextFloat()
+                        * random.nextFloat();
+                float lifetime = MIN_LIFETIME_SECONDS
+                        + (MAX_LIFETIME_SECONDS - MIN_LIFETIME_SECONDS) * random.nextFloat();
+                particles.put(particle, VertexLayout.POSITION,
+                        radius * (float) Math.cos(angle) * speed,
+                        radius * (float) Math.sin(angle) * speed, z * speed, lifetime);
+            }
+            bursts[i] = new Burst(particles);
+        }
+    }
+
+    public void attachShaders(Shader[] shaders) {
+        programId = GLES20.glCreateProgram();
+        for (Shader shader : shaders) {
+            GLES20.glAttachShader(programId, shader.id);
+        }
+        GLES20.glLinkProgram(programId);
+        GLES20.glUseProgram(programId);
+
+        Utils.checkGLError(TAG + " program");
+
+        modelViewProjectionParam = GLES20.glGetUniformLocation(programId, "u_MVP");
+        timeParam = GLES20.glGetUniformLocation(programId, "u_Time");
+        pointSizeParam = GLES20.glGetUniformLocation(programId, "u_PointSize");
+        colorParam = GLES20.glGetUniformLocation(programId, "u_Color");
+        positionParam = GLES20.glGetAttribLocation(programId, "a_Position");
+
+        Utils.checkGLError(TAG + " program params");
+    }
+
+    /**
+     * Copies the particle buffers to GPU memory. Must be called on the GL thread.
+     */
+    public void upload() {
+        for (Burst burst : bursts) {
+            burst.particles.upload();
+        }
+    }
+
+    /**
+     * Forgets the GPU buffers after the GL context was lost, call {@link #upload()} again.
+     */
+    public void onContextLost() {
+        for (Burst burst : bursts) {
+            burst.particles.onContextLost();
+        }
+    }
+
+    /**
+     * Sets how many particles of each buffer are drawn, at most the buffer size.
+     */
+    public void setParticleCount(int count) {
+        particleCount = Math.max(0, Math.min(count, maxParticles));
+    }
+
+    public int getParticleCount() {
+        return particleCount;
+    }
+
+    /**
+     * @param pixels Sprite size in pixels at a distance of one unit from the eye.
+     */
+    public void setPointSize(float pixels) {
+        pointSize = pixels;
+    }
+
+    /**
+     * Starts a burst. Safe to call from any thread, the burst shows from the next frame.
+     *
+     * @param color Red, green, blue and alpha of the particles.
+     * @param nowNanos Start time from {@link System#nanoTime()}.
+     */
+    public synchronized void emit(float x, float y, float z, float color[], long nowNanos) {
+        Burst burst = bursts[nextBurst];
+        nextBurst = (nextBurst + 1) % bursts.length;
+        burst.position[0] = x;
+        burst.position[1] = y;
+        burst.position[2] = z;
+        System.arraycopy(color, 0, burst.color, 0, 4);
+        burst.mirrorX = random.nextBoolean() ? 1 : -1;
+        burst.mirrorZ = random.nextBoolean() ? 1 : -1;
+        burst.startNanos = nowNanos;
+        burst.active = true;
+    }
+
+    /**
+     * @return Whether any burst still has live particles at the given time.
+     */
+    public synchronized boolean isActive(long nowNanos) {
+        for (Burst burst : bursts) {
+            if (burst.active && !isOver(burst, nowNanos)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the draws of the live bursts with additive blending, to follow the opaque
+     * geometry. Particles are depth tested but do not write depth, so they need no sorting.
+     * Depth test must be on when the commands are executed.
+     *
+     * @param view View matrix of the eye.
+     * @param perspective Projection matrix of the eye.
+     * @param nowNanos Time to show the bursts at.
+     */
+    public synchronized void record(CommandBuffer commands, Model view, Model perspective,
+                                    long nowNanos) {
+        boolean started = false;
+        for (Burst burst : bursts) {
+            if (!burst.active) {
+                continue;
+            }
+            if (isOver(burst, nowNanos)) {
+                burst.active = false;
+                continue;
+            }
+            if (!started) {
+                commands.useProgram(programId);
+                commands.uniform1(pointSizeParam, pointSize);
+                commands.blend(true, GLES20.GL_ONE, GLES20.GL_ONE);
+                commands.depthMask(false);
+                started = true;
+            }
+
+            Matrix.setIdentityM(model, 0);
+            Matrix.translateM(model, 0, burst.position[0], burst.position[1],
+                    burst.position[2]);
+            Matrix.scaleM(model, 0, burst.mirrorX, 1, burst.mirrorZ);
+            Matrix.multiplyMM(modelView, 0, view.value, 0, model, 0);
+            Matrix.multiplyMM(modelViewProjection, 0, perspective.value, 0, modelView, 0);
+
+            commands.uniformMatrix4(modelViewProjectionParam, modelViewProjection, 0);
+            commands.uniform1(timeParam, Math.max(0, nowNanos - burst.startNanos) / 1e9f);
+            commands.uniform4(colorParam, burst.color);
+            commands.enableAttribute(burst.particles, VertexLayout.POSITION, positionParam);
+            commands.draw(burst.particles, GLES20.GL_POINTS, 0, particleCount);
+            commands.disableAttribute(positionParam);
+        }
+        if (started) {
+            commands.depthMask(true);
+            commands.blend(false, GLES20.GL_ONE, GLES20.GL_ZERO);
+        }
+    }
+
+    private static boolean isOver(Burst burst, long nowNanos) {
+        return nowNanos - burst.startNanos > MAX_LIFETIME_SECONDS * 1e9f;
+    }
+}
@@ -0,0 +1,335 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import com.ojogaze.treasurehunt.Utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Collects the opaque draws of one eye and submits them front to back, so that the depth test
+ * rejects hidden pixels before they are shaded.
+ * <p>
+ * <p>Models marked with {@link Model#setDepthPrepass(boolean)} are first drawn depth only, with
+ * a program that does nothing per pixel. Their own, expensive program then runs with a less or
+ * equal depth test, so it only shades the pixels that ended up in front. Equal alone would be
+ * enough in theory, but less or equal still passes if a driver computes the two positions
+ * slightly differently.
+ * <p>
+ * <p>Each added draw keeps a copy of the model's matrix, mesh and material, so the same model
+ * can be moved and added again for every instance. Entries are reused from frame to frame.
+ * <p>
+ * <p>The draws are recorded into the caller's {@link CommandBuffer}, without GL calls, so the
+ * queue can be filled and recorded on another thread than the one executing the commands.
+ * <p>
+ * <p>Uniforms shared by all draws of the eye are set once per program through
+ * {@link EyeConstants}, and the projection is applied in the vertex shader. The model view
+ * matrices of all draws are computed in one pass over packed arrays when recording, using the
+ * cheaper product of two affine matrices when both are.
+ */
+public class RenderQueue {
+    private static final String TAG = "RenderQueue";
+
+    // Each shaded fragment adds this much to the red channel when counting overdraw.
+    private static final float COUNT_STEP[] = {1.0f / 255, 1.0f / 255, 1.0f / 255, 1.0f / 255};
+
+    private static class Entry {
+        // Start of this entry's matrices in the packed arrays.
+        final int offset;
+        Model model;
+        Mesh mesh;
+        // Material of this instance.
+        final float color[] = new float[4];
+        final float atlasRect[] = new float[4];
+        final float center[] = new float[3];
+        float depth;
+
+        Entry(int index) {
+            offset = index * 16;
+        }
+    }
+
+    private final EyeConstants eye = new EyeConstants();
+
+    private Entry entries[];
+    private int count = 0;
+    // Model and model view matrices of all entries, packed for the batched multiply.
+    private float models[];
+    private float modelViews[];
+
+    private int depthProgram = 0;
+    private int depthPositionParam;
+    private int depthProjectionParam;
+    private int depthModelViewParam;
+    private int depthColorParam;
+
+    private boolean sortEnabled = true;
+    private boolean depthPrepassEnabled = true;
+    private boolean countingOverdraw = false;
+    private ByteBuffer pixels;
+
+    public RenderQueue(int capacity) {
+        entries = new Entry[Math.max(capacity, 1)];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Entry(i);
+        }
+        models = new float[entries.length * 16];
+        modelViews = new float[entries.length * 16];
+    }
+
+    /**
+     * Sets the program for the depth pre-pass, which only needs u_Projection, u_MVMatrix and
+     * a_Position. Its position must be computed exactly like in the models' own vertex shaders.
+     */
+    public void attachDepthShaders(Shader[] shaders) {
+        depthProgram = GLES20.glCreateProgram();
+        for (Shader shader : shaders) {
+            GLES20.glAttachShader(depthProgram, shader.id);
+        }
+        GLES20.glLinkProgram(depthProgram);
+
+        Utils.checkGLError("depth program");
+
+        depthProjectionParam = GLES20.glGetUniformLocation(depthProgram, "u_Projection");
+        depthModelViewParam = GLES20.glGetUniformLocation(depthProgram, "u_MVMatrix");
+        depthColorParam = GLES20.glGetUniformLocation(depthProgram, "u_Color");
+        depthPositionParam = GLES20.glGetAttribLocation(depthProgram, "a_Position");
+
+        Utils.checkGLError("depth program params");
+    }
+
+    /**
+     * @param enabled false to draw in the order added, to compare against.
+     */
+    public void setSortEnabled(boolean enabled) {
+        sortEnabled = enabled;
+    }
+
+    /**
+     * @param enabled false to shade models marked for a depth pre-pass directly.
+     */
+    public void setDepthPrepassEnabled(boolean enabled) {
+        depthPrepassEnabled = enabled;
+    }
+
+    /**
+     * Replaces the models' programs with one that adds a fixed amount per shaded fragment, so that
+     * {@link #readOverdraw(int, int)} can tell how often each pixel was shaded. The color buffer
+     * must be cleared to black before the recorded commands are executed.
+     */
+    public void setCountingOverdraw(boolean counting) {
+        countingOverdraw = counting;
+    }
+
+    /**
+     * Starts the draws of an eye.
+     */
+    public void begin(Model view, Model perspective, Position lightPosInEyeSpace) {
+        eye.set(view.value, perspective.value, lightPosInEyeSpace.value);
+        count = 0;
+    }
+
+    /**
+     * @return Uniforms of the current eye, to draw models outside the queue with.
+     */
+    public EyeConstants getEyeConstants() {
+        return eye;
+    }
+
+    /**
+     * Adds a draw of the model as it is now, sorted by the depth of its origin.
+     */
+    public void add(Model model) {
+        add(model, 0, 0, 0);
+    }
+
+    /**
+     * Adds a draw of the model as it is now.
+     *
+     * @param centerX Point of the model, in its own coordinates, that it is sorted by, such as the
+     *                middle of its bounds.
+     */
+    public void add(Model model, float centerX, float centerY, float centerZ) {
+        if (count == entries.length) {
+            grow();
+        }
+        Entry entry = entries[count++];
+        entry.model = model;
+        entry.mesh = model.getMesh();
+        System.arraycopy(model.color, 0, entry.color, 0, 4);
+        System.arraycopy(model.atlasRect, 0, entry.atlasRect, 0, 4);
+        System.arraycopy(model.value, 0, models, entry.offset, 16);
+        entry.center[0] = centerX;
+        entry.center[1] = centerY;
+        entry.center[2] = centerZ;
+    }
+
+    /**
+     * Records the draws of everything added since {@link #begin(Model, Model, Position)} and
+     * empties the queue. Depth test must be on when the commands are executed.
+     */
+    public void record(CommandBuffer commands) {
+        multiplyModelViews();
+        if (sortEnabled) {
+            sort();
+        }
+        boolean prepass = depthPrepassEnabled && depthProgram != 0 && recordDepths(commands);
+
+        if (prepass) {
+            // Shaded pixels have to match the depth already written, see the class comment.
+            commands.depthFunc(GLES20.GL_LEQUAL);
+        }
+        if (countingOverdraw && depthProgram != 0) {
+            commands.blend(true, GLES20.GL_ONE, GLES20.GL_ONE);
+            commands.useProgram(depthProgram);
+            eye.record(commands, depthProgram, depthProjectionParam, -1);
+            commands.uniform4(depthColorParam, COUNT_STEP);
+            for (int i = 0; i < count; i++) {
+                Entry entry = entries[i];
+                entry.model.recordPositions(commands, entry.mesh, modelViews, entry.offset,
+                        depthModelViewParam, depthPositionParam);
+            }
+            commands.blend(false, GLES20.GL_ONE, GLES20.GL_ZERO);
+        } else {
+            for (int i = 0; i < count; i++) {
+                Entry entry = entries[i];
+                entry.model.record(commands, eye, entry.mesh, entry.color, entry.atlasRect,
+                        models, entry.offset, modelViews, entry.offset);
+            }
+        }
+        if (prepass) {
+            commands.depthFunc(GLES20.GL_LESS);
+        }
+
+        // Let go of the models and meshes until the next frame.
+        for (int i = 0; i < count; i++) {
+            entries[i].model = null;
+            entries[i].mesh = null;
+        }
+        count = 0;
+    }
+
+    /**
+     * Reads back how many fragments were shaded per pixel after executing commands recorded
+     * while counting overdraw, and adds them to the {@link RenderStats}.
+     *
+     * @return Average fragments shaded per pixel of the area.
+     */
+    public float readOverdraw(int width, int height) {
+        if (pixels == null || pixels.capacity() < width * height * 4) {
+            pixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+        }
+        pixels.position(0);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                pixels);
+        long fragments = 0;
+        for (int i = 0; i < width * height; i++) {
+            fragments += pixels.get(i * 4) & 0xFF;
+        }
+        RenderStats.addOverdraw(fragments, (long) width * height);
+        return fragments / (float) (width * height);
+    }
+
+    /**
+     * Draws the depth of the models that are expensive to shade, with color writes off.
+     *
+     * @return false if none of them needed it.
+     */
+    private boolean recordDepths(CommandBuffer commands) {
+        boolean drawn = false;
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries[i];
+            if (!entry.model.hasDepthPrepass()) {
+                continue;
+            }
+            if (!drawn) {
+                commands.colorMask(false);
+                commands.useProgram(depthProgram);
+                eye.record(commands, depthProgram, depthProjectionParam, -1);
+                drawn = true;
+            }
+            entry.model.recordPositions(commands, entry.mesh, modelViews, entry.offset,
+                    depthModelViewParam, depthPositionParam);
+        }
+        if (drawn) {
+            commands.colorMask(true);
+        }
+        return drawn;
+    }
+
+    /**
+     * Computes the model view matrices of all entries and their depths, in one pass.
+     */
+    private void multiplyModelViews() {
+        float view[] = eye.view;
+        boolean affineView = isAffine(view, 0);
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries[i];
+            int o = entry.offset;
+            if (affineView && isAffine(models, o)) {
+                multiplyAffine(modelViews, o, view, models, o);
+            } else {
+                Matrix.multiplyMM(modelViews, o, view, 0, models, o);
+            }
+            // Distance in front of the eye, which looks down negative z.
+            float center[] = entry.center;
+            entry.depth = -(modelViews[o + 2] * center[0] + modelViews[o + 6] * center[1]
+                    + modelViews[o + 10] * center[2] + modelViews[o + 14]);
+        }
+    }
+
+    private static boolean isAffine(float m[], int o) {
+        return m[o + 3] == 0 && m[o + 7] == 0 && m[o + 11] == 0 && m[o + 15] == 1;
+    }
+
+    /**
+     * Multiplies two column major matrices whose last rows are 0, 0, 0, 1, which takes 36
+     * multiplications instead of 64. The result must not overlap either input.
+     */
+    private static void multiplyAffine(float r[], int ro, float a[], float b[], int bo) {
+        for (int j = 0; j < 4; j++) {
+            float x = b[bo + j * 4];
+            float y = b[bo + j * 4 + 1];
+            float z = b[bo + j * 4 + 2];
+            for (int i = 0; i < 3; i++) {
+                r[ro + j * 4 + i] = a[i] * x + a[4 + i] * y + a[8 + i] * z;
+            }
+            r[ro + j * 4 + 3] = 0;
+        }
+        for (int i = 0; i < 3; i++) {
+            r[ro + 12 + i] += a[12 + i];
+        }
+        r[ro + 15] = 1;
+    }
+
+    private void grow() {
+        Entry grown[] = new Entry[entries.length * 2];
+        System.arraycopy(entries, 0, grown, 0, count);
+        for (int i = count; i < grown.length; i++) {
+            grown[i] = new Entry(i);
+        }
+        entries = grown;
+        float grownModels[] = new float[grown.length * 16];
+        System.arraycopy(models, 0, grownModels, 0, models.length);
+        models = grownModels;
+        modelViews = new float[grown.length * 16];
+    }
+
+    /**
+     * Sorts front to back. Insertion sort, as there are few draws, they are often added roughly
+     * in order and it does not allocate.
+     */
+    private void sort() {
+        for (int i = 1; i < count; i++) {
+            Entry entry = entries[i];
+            int j = i - 1;
+            while (j >= 0 && entries[j].depth > entry.depth) {
+                entries[j + 1] = entries[j];
+                j--;
+            }
+            entries[j + 1] = entry;
+        }
+    }
+}
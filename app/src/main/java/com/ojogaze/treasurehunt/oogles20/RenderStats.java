@@ -0,0 +1,60 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+/**
+ * Counts GL work submitted by models. Only touched on the GL thread.
+ */
+public class RenderStats {
+    private static int drawCalls = 0;
+    private static long vertices = 0;
+    private static long vertexBytes = 0;
+    private static long shadedFragments = 0;
+    private static long pixels = 0;
+
+    static void addDraw(int vertexCount, int bytes) {
+        drawCalls++;
+        vertices += vertexCount;
+        vertexBytes += bytes;
+    }
+
+    static void addOverdraw(long fragments, long pixelCount) {
+        shadedFragments += fragments;
+        pixels += pixelCount;
+    }
+
+    public static void reset() {
+        drawCalls = 0;
+        vertices = 0;
+        vertexBytes = 0;
+        shadedFragments = 0;
+        pixels = 0;
+    }
+
+    public static int getDrawCalls() {
+        return drawCalls;
+    }
+
+    public static long getVertices() {
+        return vertices;
+    }
+
+    /**
+     * @return Vertex data GL had to fetch for the draws, which the packed layouts reduce.
+     */
+    public static long getVertexBytes() {
+        return vertexBytes;
+    }
+
+    /**
+     * @return Fragments shaded per pixel in the frames where overdraw was counted, or 0 if it was
+     *         not counted.
+     */
+    public static float getOverdraw() {
+        return pixels > 0 ? shadedFragments / (float) pixels : 0;
+    }
+
+    public static String format() {
+        String stats = String.format("%d draws, %d vertices, %d vertex bytes",
+                drawCalls, vertices, vertexBytes);
+        return pixels > 0 ? stats + String.format(", %.2f overdraw", getOverdraw()) : stats;
+    }
+}
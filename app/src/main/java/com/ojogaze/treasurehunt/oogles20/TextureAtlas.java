@@ -0,0 +1,251 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+import android.opengl.ETC1;
+import android.opengl.ETC1Util;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.ojogaze.treasurehunt.Utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A texture made of a grid of square tiles, so that models can each use a different tile while
+ * sharing one texture binding.
+ * <p>
+ * <p>The tiles are painted in code and the whole mip chain is built on a background thread. Each
+ * level is also compressed to ETC1, which every GLES 2.0 device on Android can sample and which
+ * takes a sixth of the memory and bandwidth of RGB. ETC1 has no alpha, so transparency comes from
+ * the material color. GPUs without ETC1 get the uncompressed levels.
+ * <p>
+ * <p>Until the levels are ready the texture is a single white texel, so models show their plain
+ * material color instead of waiting.
+ * <p>
+ * <p>Each tile is painted inside a gutter of an eighth of its size, filled with the tile's own
+ * edge texels, and {@link #getRect(int, float[])} only covers the inside. Filtering near the
+ * edge of a tile then reads the gutter rather than the neighboring tile, down to the mip level
+ * where a tile is 4 texels across. GLES 2.0 can neither stop the mip chain early nor clamp the
+ * level of detail, so the few coarser levels still mix tiles, but they are only used when a
+ * whole tile covers a few pixels on screen.
+ */
+public class TextureAtlas {
+    private static final String TAG = "TextureAtlas";
+
+    private static final byte WHITE[] = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+
+    /**
+     * Paints the tiles of an atlas. Called on a background thread.
+     */
+    public interface Painter {
+        /**
+         * @param tile Index of the tile, row by row.
+         * @param u Horizontal position in the tile, 0 to 1.
+         * @param v Vertical position in the tile, 0 to 1.
+         * @return Color as 0xRRGGBB.
+         */
+        int paint(int tile, float u, float v);
+    }
+
+    private static class Level {
+        final int size;
+        // Tightly packed RGB rows.
+        final ByteBuffer rgb;
+        final ByteBuffer etc1;
+
+        Level(int size, ByteBuffer rgb, ByteBuffer etc1) {
+            this.size = size;
+            this.rgb = rgb;
+            this.etc1 = etc1;
+        }
+    }
+
+    public final String name;
+    private final int tileSize;
+    private final int columns;
+    private final int size;
+    // Texels around each tile that repeat its edge, and the painted inside.
+    private final int gutter;
+    private final int innerSize;
+
+    private Future<Level[]> levels;
+    private int textureId = 0;
+    private boolean loaded = false;
+
+    /**
+     * @param tileSize Pixels per side of a tile including its gutter, a power of two of at
+     *                 least 8.
+     * @param columns Tiles per row and column, so that the atlas is a power of two.
+     */
+    public TextureAtlas(String name, int tileSize, int columns) {
+        this.name = name;
+        this.tileSize = tileSize;
+        this.columns = columns;
+        this.size = tileSize * columns;
+        this.gutter = tileSize / 8;
+        this.innerSize = tileSize - 2 * gutter;
+    }
+
+    /**
+     * Starts painting and compressing the atlas.
+     */
+    public void load(ExecutorService executor, final Painter painter) {
+        levels = executor.submit(new Callable<Level[]>() {
+            @Override
+            public Level[] call() throws Exception {
+                return build(painter);
+            }
+        });
+    }
+
+    /**
+     * Gets where a tile is in the atlas, as used by the vertex shader to map texture coordinates
+     * of a model into the tile.
+     *
+     * @param rect Receives the offset and scale of the painted inside of the tile, in texture
+     *             coordinates.
+     */
+    public void getRect(int tile, float rect[]) {
+        rect[0] = ((tile % columns) * tileSize + gutter) / (float) size;
+        rect[1] = ((tile / columns) * tileSize + gutter) / (float) size;
+        rect[2] = innerSize / (float) size;
+        rect[3] = innerSize / (float) size;
+    }
+
+    public int getTextureId() {
+        return textureId;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Creates the texture, and replaces it with the atlas once that is built. Must be called on
+     * the GL thread, cheap to call every frame.
+     */
+    public void upload() {
+        if (loaded) {
+            return;
+        }
+        if (textureId == 0) {
+            int ids[] = new int[1];
+            GLES20.glGenTextures(1, ids, 0);
+            textureId = ids[0];
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, 1, 1, 0, GLES20.GL_RGB,
+                    GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(WHITE));
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_LINEAR_MIPMAP_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            Utils.checkGLError("creating " + name);
+        }
+        if (levels == null || !levels.isDone()) {
+            return;
+        }
+
+        Level built[];
+        try {
+            built = levels.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Could not build " + name, e);
+            levels = null;
+            return;
+        }
+        boolean compressed = ETC1Util.isETC1Supported();
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        for (int level = 0; level < built.length; level++) {
+            Level data = built[level];
+            if (compressed) {
+                data.etc1.position(0);
+                GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, level, ETC1.ETC1_RGB8_OES,
+                        data.size, data.size, 0, data.etc1.capacity(), data.etc1);
+            } else {
+                data.rgb.position(0);
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, level, GLES20.GL_RGB, data.size,
+                        data.size, 0, GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, data.rgb);
+            }
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        Utils.checkGLError("uploading " + name);
+        loaded = true;
+        Log.i(TAG, String.format("%s %dx%d, %d levels, %s", name, size, size, built.length,
+                compressed ? "ETC1" : "RGB"));
+    }
+
+    /**
+     * Forgets the texture after the GL context was lost. The built levels are kept, so the next
+     * upload does not have to build them again.
+     */
+    public void onContextLost() {
+        textureId = 0;
+        loaded = false;
+    }
+
+    private Level[] build(Painter painter) {
+        int count = Integer.numberOfTrailingZeros(size) + 1;
+        Level built[] = new Level[count];
+        ByteBuffer rgb = ByteBuffer.allocateDirect(size * size * 3).order(ByteOrder.nativeOrder());
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int tile = (y / tileSize) * columns + x / tileSize;
+                // Sample the middle of each texel, the gutter repeats the nearest edge texel.
+                int innerX = Math.max(0, Math.min(x % tileSize - gutter, innerSize - 1));
+                int innerY = Math.max(0, Math.min(y % tileSize - gutter, innerSize - 1));
+                int color = painter.paint(tile, (innerX + 0.5f) / innerSize,
+                        (innerY + 0.5f) / innerSize);
+                int i = (y * size + x) * 3;
+                rgb.put(i, (byte) (color >> 16));
+                rgb.put(i + 1, (byte) (color >> 8));
+                rgb.put(i + 2, (byte) color);
+            }
+        }
+        int levelSize = size;
+        for (int level = 0; level < count; level++) {
+            built[level] = new Level(levelSize, rgb, compress(rgb, levelSize));
+            if (levelSize > 1) {
+                rgb = downsample(rgb, levelSize);
+                levelSize /= 2;
+            }
+        }
+        return built;
+    }
+
+    private static ByteBuffer compress(ByteBuffer rgb, int size) {
+        rgb.position(0);
+        ETC1Util.ETC1Texture texture = ETC1Util.compressTexture(rgb, size, size, 3, size * 3);
+        return texture.getData();
+    }
+
+    /**
+     * Halves each side, averaging 2x2 blocks.
+     */
+    private static ByteBuffer downsample(ByteBuffer rgb, int size) {
+        int half = size / 2;
+        ByteBuffer result = ByteBuffer.allocateDirect(half * half * 3)
+                .order(ByteOrder.nativeOrder());
+        for (int y = 0; y < half; y++) {
+            for (int x = 0; x < half; x++) {
+                for (int c = 0; c < 3; c++) {
+                    int i = (y * 2 * size + x * 2) * 3 + c;
+                    int sum = (rgb.get(i) & 0xFF) + (rgb.get(i + 3) & 0xFF)
+                            + (rgb.get(i + size * 3) & 0xFF) + (rgb.get(i + size * 3 + 3) & 0xFF);
+                    result.put((y * half + x) * 3 + c, (byte) ((sum + 2) / 4));
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,191 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Describes how the attributes of one vertex are packed in an interleaved vertex buffer.
+ * <p>
+ * <p>Attributes can use smaller types than float, for example normalized bytes for colors and
+ * normals or half floats for positions, to cut the memory bandwidth needed to fetch vertices.
+ * <p>
+ * <p>Plain Java, so that the mesh converter tool packs vertices exactly like the app.
+ */
+public class VertexLayout {
+    public static final int POSITION = 0;
+    public static final int NORMAL = 1;
+    public static final int COLOR = 2;
+    public static final int TEXCOORD = 3;
+
+    static final int SEMANTICS = 4;
+
+    // From OES_vertex_half_float, not in GLES20.
+    public static final int GL_HALF_FLOAT_OES = 0x8D61;
+
+    // Values from GLES20, which the tools do not link against.
+    private static final int GL_BYTE = 0x1400;
+    private static final int GL_UNSIGNED_BYTE = 0x1401;
+    private static final int GL_SHORT = 0x1402;
+    private static final int GL_UNSIGNED_SHORT = 0x1403;
+    private static final int GL_FLOAT = 0x1406;
+
+    public static class Attribute {
+        public final int semantic;
+        public final int size;
+        public final int type;
+        public final boolean normalized;
+        public final int offset;
+
+        Attribute(int semantic, int size, int type, boolean normalized, int offset) {
+            this.semantic = semantic;
+            this.size = size;
+            this.type = type;
+            this.normalized = normalized;
+            this.offset = offset;
+        }
+    }
+
+    private final Attribute attributes[] = new Attribute[SEMANTICS];
+    private int stride = 0;
+
+    /**
+     * Appends an attribute after the ones added so far. Attributes start on 4 byte boundaries,
+     * as GL ES prefers.
+     *
+     * @param semantic One of {@link #POSITION}, {@link #NORMAL}, {@link #COLOR} or
+     *                 {@link #TEXCOORD}.
+     * @param size Number of components.
+     * @param type GL type of each component.
+     * @param normalized Whether integer types map to 0..1 or -1..1.
+     */
+    public VertexLayout add(int semantic, int size, int type, boolean normalized) {
+        return add(semantic, size, type, normalized, stride);
+    }
+
+    /**
+     * Adds an attribute at a given offset, as read from a mesh header.
+     */
+    public VertexLayout add(int semantic, int size, int type, boolean normalized, int offset) {
+        attributes[semantic] = new Attribute(semantic, size, type, normalized, offset);
+        stride = Math.max(stride, align(offset + size * sizeOf(type)));
+        return this;
+    }
+
+    public Attribute get(int semantic) {
+        return semantic >= 0 && semantic < SEMANTICS ? attributes[semantic] : null;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public boolean uses(int type) {
+        for (Attribute attribute : attributes) {
+            if (attribute != null && attribute.type == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Same attributes with half floats replaced by floats, for GPUs without
+     * OES_vertex_half_float.
+     */
+    public VertexLayout withoutHalfFloats() {
+        VertexLayout layout = new VertexLayout();
+        for (Attribute attribute : attributes) {
+            if (attribute != null) {
+                layout.add(attribute.semantic, attribute.size,
+                        attribute.type == GL_HALF_FLOAT_OES ? GL_FLOAT : attribute.type,
+                        attribute.normalized);
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * Writes one component of an attribute, converting from float to the attribute's type.
+     */
+    public void put(ByteBuffer buffer, int vertex, int semantic, int component, float value) {
+        Attribute attribute = attributes[semantic];
+        int index = vertex * stride + attribute.offset + component * sizeOf(attribute.type);
+        switch (attribute.type) {
+            case GL_FLOAT:
+                buffer.putFloat(index, value);
+                break;
+            case GL_HALF_FLOAT_OES:
+                buffer.putShort(index, HalfFloat.toHalf(value));
+                break;
+            case GL_SHORT:
+                buffer.putShort(index, (short) Math.round(attribute.normalized
+                        ? clamp(value, -1, 1) * Short.MAX_VALUE : value));
+                break;
+            case GL_UNSIGNED_SHORT:
+                buffer.putShort(index, (short) Math.round(attribute.normalized
+                        ? clamp(value, 0, 1) * 0xFFFF : value));
+                break;
+            case GL_BYTE:
+                buffer.put(index, (byte) Math.round(attribute.normalized
+                        ? clamp(value, -1, 1) * Byte.MAX_VALUE : value));
+                break;
+            case GL_UNSIGNED_BYTE:
+                buffer.put(index, (byte) Math.round(attribute.normalized
+                        ? clamp(value, 0, 1) * 0xFF : value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported type " + attribute.type);
+        }
+    }
+
+    /**
+     * Reads one component of an attribute as a float.
+     */
+    public float get(ByteBuffer buffer, int vertex, int semantic, int component) {
+        Attribute attribute = attributes[semantic];
+        int index = vertex * stride + attribute.offset + component * sizeOf(attribute.type);
+        switch (attribute.type) {
+            case GL_FLOAT:
+                return buffer.getFloat(index);
+            case GL_HALF_FLOAT_OES:
+                return HalfFloat.toFloat(buffer.getShort(index));
+            case GL_SHORT:
+                short s = buffer.getShort(index);
+                return attribute.normalized ? Math.max(s / (float) Short.MAX_VALUE, -1f) : s;
+            case GL_UNSIGNED_SHORT:
+                int us = buffer.getShort(index) & 0xFFFF;
+                return attribute.normalized ? us / (float) 0xFFFF : us;
+            case GL_BYTE:
+                byte b = buffer.get(index);
+                return attribute.normalized ? Math.max(b / (float) Byte.MAX_VALUE, -1f) : b;
+            case GL_UNSIGNED_BYTE:
+                int ub = buffer.get(index) & 0xFF;
+                return attribute.normalized ? ub / (float) 0xFF : ub;
+            default:
+                throw new IllegalArgumentException("Unsupported type " + attribute.type);
+        }
+    }
+
+    public static int sizeOf(int type) {
+        switch (type) {
+            case GL_FLOAT:
+                return 4;
+            case GL_HALF_FLOAT_OES:
+            case GL_SHORT:
+            case GL_UNSIGNED_SHORT:
+                return 2;
+            case GL_BYTE:
+            case GL_UNSIGNED_BYTE:
+                return 1;
+            default:
+                throw new IllegalArgumentException("Unsupported type " + type);
+        }
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.min(Math.max(value, min), max);
+    }
+}
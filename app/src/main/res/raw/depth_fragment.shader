@@ -0,0 +1,8 @@
+precision mediump float;
+
+// Ignored in the depth pre-pass, added up per pixel when counting overdraw.
+uniform vec4 u_Color;
+
+void main() {
+    gl_FragColor = u_Color;
+}
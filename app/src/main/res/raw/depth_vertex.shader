@@ -0,0 +1,11 @@
+uniform mat4 u_Projection;
+uniform mat4 u_MVMatrix;
+
+attribute vec4 a_Position;
+
+// Must match light_vertex exactly, so shading with an equal depth test passes.
+invariant gl_Position;
+
+void main() {
+   gl_Position = u_Projection * (u_MVMatrix * a_Position);
+}
@@ -15,19 +15,27 @@
  */
 
 uniform mat4 u_Model;
-uniform mat4 u_MVP;
+uniform mat4 u_Projection;
 uniform mat4 u_MVMatrix;
 uniform vec3 u_LightPos;
+// Offset and scale of the material's tile in the atlas.
+uniform vec4 u_AtlasRect;
 
 attribute vec4 a_Position;
 attribute vec4 a_Color;
 attribute vec3 a_Normal;
+attribute vec2 a_TexCoord;
 
 varying vec4 v_Color;
 varying vec3 v_Grid;
+varying vec2 v_TexCoord;
+
+// Depth pre-passes compute the same position in another shader.
+invariant gl_Position;
 
 void main() {
    v_Grid = vec3(u_Model * a_Position);
+   v_TexCoord = u_AtlasRect.xy + a_TexCoord * u_AtlasRect.zw;
 
    vec3 modelViewVertex = vec3(u_MVMatrix * a_Position);
    vec3 modelViewNormal = vec3(u_MVMatrix * vec4(a_Normal, 0.0));
@@ -38,5 +46,5 @@ void main() {
 
    diffuse = diffuse * (1.0 / (1.0 + (0.00001 * distance * distance)));
    v_Color = vec4(a_Color.rgb * diffuse, a_Color.a);
-   gl_Position = u_MVP * a_Position;
+   gl_Position = u_Projection * (u_MVMatrix * a_Position);
 }
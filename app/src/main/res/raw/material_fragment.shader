@@ -0,0 +1,9 @@
+precision mediump float;
+uniform sampler2D u_Texture;
+varying vec4 v_Color;
+varying vec2 v_TexCoord;
+
+void main() {
+    // The atlas is tinted by the material color, which also carries the alpha.
+    gl_FragColor = v_Color * texture2D(u_Texture, v_TexCoord);
+}
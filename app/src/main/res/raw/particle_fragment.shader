@@ -0,0 +1,10 @@
+precision mediump float;
+uniform vec4 u_Color;
+varying float v_Alpha;
+
+void main() {
+    // Round soft sprite, fading to nothing at the edge so additive blending needs no discard.
+    vec2 offset = gl_PointCoord - vec2(0.5);
+    float falloff = max(1.0 - 4.0 * dot(offset, offset), 0.0);
+    gl_FragColor = u_Color * (falloff * v_Alpha);
+}
@@ -0,0 +1,24 @@
+uniform mat4 u_MVP;
+uniform float u_Time;
+uniform float u_PointSize;
+
+// Initial velocity in xyz and lifetime in seconds in w, fixed for the particle buffer.
+attribute vec4 a_Position;
+
+varying float v_Alpha;
+
+const float DRAG = 1.5;
+const float GRAVITY = -3.0;
+
+void main() {
+   // Closed form of motion with linear drag plus gravity, so no state is kept between frames.
+   float t = u_Time;
+   float travel = (1.0 - exp(-DRAG * t)) / DRAG;
+   vec3 position = a_Position.xyz * travel + vec3(0.0, 0.5 * GRAVITY * t * t, 0.0);
+
+   v_Alpha = clamp(1.0 - t / a_Position.w, 0.0, 1.0);
+   // Point sizes are clamped to at least one pixel, so dead particles are moved outside the clip
+   // volume instead, where they are discarded before producing any fragments.
+   gl_Position = v_Alpha > 0.0 ? u_MVP * vec4(position, 1.0) : vec4(2.0, 2.0, 2.0, 1.0);
+   gl_PointSize = u_PointSize / gl_Position.w;
+}
@@ -0,0 +1,127 @@
+package com.ojogaze.treasurehunt;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records a session and reads it back with {@link SessionLog}.
+ */
+public class SessionRecorderTest {
+    @Test
+    public void roundTrip() throws IOException, InterruptedException {
+        File dir = File.createTempFile("sessions", "");
+        assertTrue(dir.delete());
+        SessionRecorder recorder = new SessionRecorder(dir);
+        try {
+            // Calibrated before the session starts, as the activity does in onCreate.
+            recorder.recordCalibration(1, 300);
+            recorder.start();
+            recorder.recordHeadPose(10, new float[] {0.1f, 0.2f, 0.3f, 0.9f});
+            recorder.recordGesture(20, "blink", 3);
+            recorder.recordGesture(30, "wink", 1);
+            recorder.recordCalibration(40, 350);
+            recorder.recordFrame(50, 16666667, 2000000);
+            recorder.stop();
+            // Ignored while stopped.
+            recorder.recordGesture(60, "left", 1);
+            recorder.awaitWritten();
+
+            List<String> records = read(recorder.getFile());
+            assertEquals(6, records.size());
+            // The calibration in effect is written at the start of the session.
+            assertTrue(records.get(0).startsWith("calibration "));
+            assertTrue(records.get(0).endsWith(" 300"));
+            assertEquals("head 10 0.1 0.2 0.3 0.9", records.get(1));
+            assertEquals("gesture 20 blink 3", records.get(2));
+            assertEquals("gesture 30 null 1", records.get(3));
+            assertEquals("calibration 40 350", records.get(4));
+            assertEquals("frame 50 16666667 2000000", records.get(5));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void failedSessionIsNotCarriedOver() throws IOException, InterruptedException {
+        // A file where the directory should be, so that the first session cannot be written.
+        File dir = File.createTempFile("sessions", "");
+        SessionRecorder recorder = new SessionRecorder(dir);
+        recorder.start();
+        recorder.recordFrame(10, 16666667, 2000000);
+        recorder.recordFrame(20, 16666667, 2000000);
+        recorder.stop();
+        recorder.awaitWritten();
+
+        assertTrue(dir.delete());
+        try {
+            recorder.start();
+            recorder.recordFrame(30, 16666667, 2000000);
+            recorder.stop();
+            recorder.awaitWritten();
+
+            List<String> records = read(recorder.getFile());
+            assertEquals(1, records.size());
+            assertEquals("frame 30 16666667 2000000", records.get(0));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static List<String> read(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        byte bytes[];
+        try {
+            bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+        } finally {
+            input.close();
+        }
+        final List<String> records = new ArrayList<>();
+        SessionLog.read(file.toString(), ByteBuffer.wrap(bytes), new SessionLog.Visitor() {
+            @Override
+            public void onStart(long startMillis, long startNanos) {
+            }
+
+            @Override
+            public void onHeadPose(long nanos, float x, float y, float z, float w) {
+                records.add("head " + nanos + " " + x + " " + y + " " + z + " " + w);
+            }
+
+            @Override
+            public void onGesture(long nanos, String gesture, int eventCount) {
+                records.add("gesture " + nanos + " " + gesture + " " + eventCount);
+            }
+
+            @Override
+            public void onCalibration(long nanos, int amplitude) {
+                records.add("calibration " + nanos + " " + amplitude);
+            }
+
+            @Override
+            public void onFrame(long nanos, int frameNanos, int scanoutLeadNanos) {
+                records.add("frame " + nanos + " " + frameNanos + " " + scanoutLeadNanos);
+            }
+
+            @Override
+            public void onDropped(long nanos, int count) {
+                records.add("dropped " + nanos + " " + count);
+            }
+        });
+        return records;
+    }
+}
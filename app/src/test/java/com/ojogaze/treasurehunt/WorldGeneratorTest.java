@@ -0,0 +1,60 @@
+package com.ojogaze.treasurehunt;
+
+import com.ojogaze.treasurehunt.oogles20.VertexLayout;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that chunks only depend on the seed and their coordinates.
+ */
+public class WorldGeneratorTest {
+    private static final long SEED = 0x5EED;
+
+    @Test
+    public void sameSeedGeneratesSameChunks() {
+        WorldGenerator first = new WorldGenerator(SEED);
+        WorldGenerator second = new WorldGenerator(SEED);
+        int size = 7;
+        WorldGenerator.Chunk chunks[] = new WorldGenerator.Chunk[size * size];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = first.generate(i % size - 3, i / size - 3);
+        }
+        // In reverse on the second generator, as chunks are generated in view order.
+        for (int i = chunks.length - 1; i >= 0; i--) {
+            assertSameChunk(chunks[i], second.generate(i % size - 3, i / size - 3));
+        }
+    }
+
+    @Test
+    public void seedChangesTerrain() {
+        WorldGenerator first = new WorldGenerator(SEED);
+        WorldGenerator second = new WorldGenerator(SEED + 1);
+        boolean differs = false;
+        for (int i = 0; i < 10 && !differs; i++) {
+            differs = first.heightAt(i * 7.3f, i * 3.1f) != second.heightAt(i * 7.3f, i * 3.1f);
+        }
+        assertTrue(differs);
+    }
+
+    private static void assertSameChunk(WorldGenerator.Chunk expected,
+                                        WorldGenerator.Chunk actual) {
+        assertEquals(expected.x, actual.x);
+        assertEquals(expected.z, actual.z);
+        assertEquals(expected.terrain.vertexCount, actual.terrain.vertexCount);
+        assertEquals(expected.terrain.indexCount, actual.terrain.indexCount);
+        for (int vertex = 0; vertex < expected.terrain.vertexCount; vertex++) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(expected.terrain.get(vertex, VertexLayout.POSITION, i),
+                        actual.terrain.get(vertex, VertexLayout.POSITION, i), 0f);
+                assertEquals(expected.terrain.get(vertex, VertexLayout.NORMAL, i),
+                        actual.terrain.get(vertex, VertexLayout.NORMAL, i), 0f);
+            }
+        }
+        assertArrayEquals(expected.treasures, actual.treasures, 0f);
+        assertArrayEquals(expected.treasureMaterials, actual.treasureMaterials);
+    }
+}
@@ -0,0 +1,119 @@
+package com.ojogaze.treasurehunt.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs many simulated players against one server on localhost and checks that every client
+ * ends up with exactly the server's state.
+ * <p>
+ * <p>Players act in step with the server's ticks, as seen by the clients, rather than with the
+ * wall clock, so a slow machine only makes the test take longer.
+ */
+public class HuntServerLoadTest {
+    private static final int CLIENTS = 64;
+    private static final int PLAY_TICKS = 60;
+    // Chance of each player gesturing per tick, far more often than a real player.
+    private static final int GESTURE_ONE_IN = 4;
+    // Beyond the fixation and explode timers, after which the state stops changing.
+    private static final int SETTLE_TICKS = 2000 / HuntServer.TICK_MILLIS;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private HuntServer server;
+    private final List<HuntClient> clients = new ArrayList<>();
+    private final AtomicInteger gesturesSeen = new AtomicInteger();
+    private final AtomicInteger disconnects = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new HuntServer(0);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+        for (int i = 0; i < CLIENTS; i++) {
+            HuntClient client = new HuntClient(address, new HuntClient.Listener() {
+                @Override
+                public void onGesture(int player, String gesture) {
+                    gesturesSeen.incrementAndGet();
+                }
+
+                @Override
+                public void onDisconnected(IOException error) {
+                    disconnects.incrementAndGet();
+                }
+            });
+            client.start();
+            clients.add(client);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (HuntClient client : clients) {
+            client.stop();
+        }
+        server.stop();
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void clientsConvergeToServerState() throws Exception {
+        HuntState expected = new HuntState();
+        HuntState actual = new HuntState();
+        // Every client has joined once it has a snapshot.
+        awaitAll(0);
+        assertEquals(CLIENTS, server.getPlayerCount());
+
+        Random random = new Random(1);
+        int sent = 0;
+        server.copyState(expected);
+        int tick = expected.tick;
+        for (int i = 0; i < PLAY_TICKS; i++) {
+            for (HuntClient client : clients) {
+                if (random.nextInt(GESTURE_ONE_IN) == 0) {
+                    String gesture = Protocol.GESTURES[random.nextInt(Protocol.GESTURES.length)];
+                    if (client.sendGesture(gesture)) {
+                        sent++;
+                    }
+                }
+            }
+            awaitAll(++tick);
+        }
+        assertTrue(sent > 0);
+
+        // Until the fixation and explode timers have run out and the last gestures arrived.
+        awaitAll(tick + SETTLE_TICKS);
+        server.copyState(expected);
+        awaitAll(expected.tick);
+        for (HuntClient client : clients) {
+            client.copyLatest(actual);
+            // Nothing changes any more, only the tick moves on.
+            actual.tick = expected.tick;
+            assertEquals(expected, actual);
+            int id = client.getPlayerId();
+            assertTrue(actual.isAlive(id) && actual.isVisible(id));
+            // Smoothed state lands on the same positions once nothing moves.
+            client.sample(System.nanoTime() + 1000000000L, actual);
+            assertEquals(expected.getX(id), actual.getX(id), 0.001f);
+        }
+
+        assertEquals(0, disconnects.get());
+        // Gestures are passed on to the other players.
+        assertTrue(gesturesSeen.get() > 0);
+    }
+
+    private void awaitAll(int tick) throws InterruptedException {
+        for (HuntClient client : clients) {
+            client.awaitTick(tick);
+        }
+    }
+}
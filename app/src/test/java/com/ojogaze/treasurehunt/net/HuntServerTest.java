@@ -0,0 +1,73 @@
+package com.ojogaze.treasurehunt.net;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the snapshots the server encodes for players, and how it handles bad input.
+ */
+public class HuntServerTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Test
+    public void deltaCarriesGesturesOfSkippedSnapshots() throws IOException {
+        HuntServer server = new HuntServer(0);
+        server.applyGesture(0, Protocol.indexOf("left"));
+        server.step();
+        // The player was sent tick 0, then skipped tick 1 and 2 while backed up.
+        server.applyGesture(1, Protocol.indexOf("right"));
+        server.step();
+        server.applyGesture(0, Protocol.indexOf("fixation"));
+        server.step();
+        server.applyGesture(1, Protocol.indexOf("left"));
+        server.step();
+
+        assertEquals("1 right, 0 fixation, 1 left", readGestures(server.encode(3, 0), 3, 0));
+        // Full snapshots only carry the last tick's gestures.
+        assertEquals("1 left", readGestures(server.encode(3, -1), 3, -1));
+        assertEquals("1 left", readGestures(server.encode(3, 2), 3, 2));
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void disconnectsOnOversizedMessage() throws IOException {
+        HuntServer server = new HuntServer(0);
+        server.start();
+        SocketChannel channel = SocketChannel.open(
+                new InetSocketAddress("localhost", server.getPort()));
+        try {
+            // Announces a message longer than the server could ever buffer.
+            ByteBuffer out = ByteBuffer.allocate(3);
+            out.putShort((short) Protocol.MAX_MESSAGE_BYTES).put(Protocol.GESTURE).flip();
+            channel.write(out);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(64)));
+        } finally {
+            channel.close();
+            server.stop();
+        }
+    }
+
+    private static String readGestures(ByteBuffer message, int tick, int base)
+            throws IOException {
+        ByteBuffer in = message.duplicate();
+        assertEquals(in.remaining() - 2, Protocol.next(in, Protocol.MAX_MESSAGE_BYTES));
+        assertEquals(Protocol.SNAPSHOT, in.get());
+        assertEquals(tick, in.getInt());
+        assertEquals(base, in.getInt());
+        new HuntState().readDelta(in);
+
+        StringBuilder gestures = new StringBuilder();
+        int count = in.getShort();
+        for (int i = 0; i < count; i++) {
+            gestures.append(i > 0 ? ", " : "").append(in.getShort()).append(' ')
+                    .append(Protocol.nameOf(in.get()));
+        }
+        assertEquals(0, in.remaining());
+        return gestures.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that face corners are shared between triangles wherever their attributes match.
+ */
+public class ObjParserTest {
+    // Cube with one normal per face.
+    private static final String CUBE = ""
+            + "v -1 -1 1\nv 1 -1 1\nv -1 1 1\nv 1 1 1\n"
+            + "v -1 -1 -1\nv 1 -1 -1\nv -1 1 -1\nv 1 1 -1\n"
+            + "vn 0 0 1\nvn 0 0 -1\nvn 1 0 0\nvn -1 0 0\nvn 0 1 0\nvn 0 -1 0\n"
+            + "f 1//1 2//1 4//1 3//1\n"
+            + "f 6//2 5//2 7//2 8//2\n"
+            + "f 2//3 6//3 8//3 4//3\n"
+            + "f 5//4 1//4 3//4 7//4\n"
+            + "f 3//5 4//5 8//5 7//5\n"
+            + "f 5//6 6//6 2//6 1//6\n";
+
+    @Test
+    public void cubeSharesCornersWithinFaces() throws IOException {
+        ObjParser cube = parse(CUBE);
+        // Each face corner has its own normal, so only the two triangles of a face share.
+        assertEquals(24, cube.getVertexCount());
+        assertEquals(36, cube.getIndexCount());
+        assertFalse(cube.hasColors());
+        assertFalse(cube.hasTexCoords());
+        for (int i = 0; i < cube.getIndexCount(); i++) {
+            assertTrue(cube.getIndex(i) < cube.getVertexCount());
+        }
+    }
+
+    @Test
+    public void smoothCornersAreShared() throws IOException {
+        // Two triangles of a quad with per vertex normals and texture coordinates.
+        ObjParser quad = parse("v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+                + "vt 0 0\nvt 1 0\nvt 1 1\nvt 0 1\nvn 0 0 1\n"
+                + "f 1/1/1 2/2/1 3/3/1\nf 1/1/1 3/3/1 4/4/1\n");
+        assertEquals(4, quad.getVertexCount());
+        assertEquals(6, quad.getIndexCount());
+        assertTrue(quad.hasTexCoords());
+        assertEquals(quad.getIndex(0), quad.getIndex(3));
+        assertEquals(quad.getIndex(2), quad.getIndex(4));
+    }
+
+    @Test
+    public void differentTexCoordsSplitCorners() throws IOException {
+        // Same positions and normal, but a seam in the texture at the first corner.
+        ObjParser quad = parse("v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+                + "vt 0 0\nvt 1 0\nvt 1 1\nvt 0 1\nvt 0.5 0.5\nvn 0 0 1\n"
+                + "f 1/1/1 2/2/1 3/3/1\nf 1/5/1 3/3/1 4/4/1\n");
+        assertEquals(5, quad.getVertexCount());
+        assertEquals(6, quad.getIndexCount());
+    }
+
+    @Test
+    public void flatNormalsAreNotShared() throws IOException {
+        // Faces without normals each get their own flat normal.
+        ObjParser quad = parse("v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+                + "f 1 2 3\nf 1 3 4\n");
+        assertEquals(6, quad.getVertexCount());
+        assertEquals(6, quad.getIndexCount());
+        assertEquals(1f, quad.getNormal(quad.getIndex(0))[2], 0.0001f);
+    }
+
+    private static ObjParser parse(String obj) throws IOException {
+        return ObjParser.parse("test.obj", new ByteArrayInputStream(obj.getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,102 @@
+package com.ojogaze.treasurehunt.oogles20;
+
+import android.opengl.GLES20;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that packed attribute types round trip, including at the edges of their ranges.
+ */
+public class VertexLayoutTest {
+    // Smallest positive subnormal half, 2^-24.
+    private static final float MIN_HALF = 5.9604645e-8f;
+    // Largest subnormal half, 1023 * 2^-24.
+    private static final float MAX_SUBNORMAL_HALF = 6.0975552e-5f;
+
+    @Test
+    public void halfFloatRoundTrip() {
+        float values[] = {0f, 1f, -1f, 0.5f, 0.333251953125f, 1024f, 65504f, -65504f, MIN_HALF,
+                -MIN_HALF, MAX_SUBNORMAL_HALF, 6.1035156e-5f};
+        for (float value : values) {
+            assertEquals("Round trip of " + value, value,
+                    HalfFloat.toFloat(HalfFloat.toHalf(value)), 0f);
+        }
+        assertEquals(0x0000, HalfFloat.toHalf(0f));
+        assertEquals(0x8000, HalfFloat.toHalf(-0f) & 0xFFFF);
+        assertEquals(HalfFloat.MAX_VALUE, HalfFloat.toHalf(65504f));
+        assertEquals(0x0001, HalfFloat.toHalf(MIN_HALF));
+        assertEquals(0x03FF, HalfFloat.toHalf(MAX_SUBNORMAL_HALF));
+    }
+
+    @Test
+    public void halfFloatRounding() {
+        // 1 + 2^-11 is halfway between 1 and the next half, and rounds up.
+        assertEquals(1.0009765625f, HalfFloat.toFloat(HalfFloat.toHalf(1.00048828125f)), 0f);
+        assertEquals(1f, HalfFloat.toFloat(HalfFloat.toHalf(1.0004f)), 0f);
+        // Half of the smallest subnormal rounds up to it, less than that goes to zero.
+        assertEquals(MIN_HALF, HalfFloat.toFloat(HalfFloat.toHalf(MIN_HALF / 2)), 0f);
+        assertEquals(0f, HalfFloat.toFloat(HalfFloat.toHalf(MIN_HALF / 4)), 0f);
+    }
+
+    @Test
+    public void halfFloatSpecialValues() {
+        assertEquals(0x7C00, HalfFloat.toHalf(Float.POSITIVE_INFINITY));
+        assertEquals(0xFC00, HalfFloat.toHalf(Float.NEGATIVE_INFINITY) & 0xFFFF);
+        // Too large for a half.
+        assertEquals(0x7C00, HalfFloat.toHalf(65520f));
+        assertEquals(0xFC00, HalfFloat.toHalf(-1e10f) & 0xFFFF);
+        assertTrue(Float.isNaN(HalfFloat.toFloat(HalfFloat.toHalf(Float.NaN))));
+        assertEquals(Float.POSITIVE_INFINITY, HalfFloat.toFloat((short) 0x7C00), 0f);
+    }
+
+    @Test
+    public void normalizedRoundTrip() {
+        VertexLayout layout = new VertexLayout()
+                .add(VertexLayout.POSITION, 1, GLES20.GL_BYTE, true)
+                .add(VertexLayout.NORMAL, 1, GLES20.GL_SHORT, true)
+                .add(VertexLayout.COLOR, 1, GLES20.GL_UNSIGNED_BYTE, true)
+                .add(VertexLayout.TEXCOORD, 1, VertexLayout.GL_HALF_FLOAT_OES, false);
+        ByteBuffer buffer = ByteBuffer.allocate(layout.getStride()).order(ByteOrder.nativeOrder());
+
+        float signed[] = {-1f, 0f, 1f, 0.75f, -0.25f};
+        for (float value : signed) {
+            assertEquals(value, roundTrip(layout, buffer, VertexLayout.POSITION, value),
+                    0.5f / Byte.MAX_VALUE);
+            assertEquals(value, roundTrip(layout, buffer, VertexLayout.NORMAL, value),
+                    0.5f / Short.MAX_VALUE);
+        }
+        float unsigned[] = {0f, 1f, 0.6f, 0.2f};
+        for (float value : unsigned) {
+            assertEquals(value, roundTrip(layout, buffer, VertexLayout.COLOR, value), 0.5f / 0xFF);
+        }
+        assertEquals(65504f, roundTrip(layout, buffer, VertexLayout.TEXCOORD, 65504f), 0f);
+    }
+
+    @Test
+    public void normalizedClamps() {
+        VertexLayout layout = new VertexLayout()
+                .add(VertexLayout.POSITION, 1, GLES20.GL_BYTE, true)
+                .add(VertexLayout.COLOR, 1, GLES20.GL_UNSIGNED_BYTE, true);
+        ByteBuffer buffer = ByteBuffer.allocate(layout.getStride()).order(ByteOrder.nativeOrder());
+
+        assertEquals(1f, roundTrip(layout, buffer, VertexLayout.POSITION, 3f), 0f);
+        assertEquals(-1f, roundTrip(layout, buffer, VertexLayout.POSITION, -3f), 0f);
+        assertEquals(1f, roundTrip(layout, buffer, VertexLayout.COLOR, 2f), 0f);
+        assertEquals(0f, roundTrip(layout, buffer, VertexLayout.COLOR, -1f), 0f);
+        // -128 is below -1 when normalized, GL ES clamps it to -1 like the reader.
+        buffer.put(layout.get(VertexLayout.POSITION).offset, Byte.MIN_VALUE);
+        assertEquals(-1f, layout.get(buffer, 0, VertexLayout.POSITION, 0), 0f);
+    }
+
+    private static float roundTrip(VertexLayout layout, ByteBuffer buffer, int semantic,
+                                   float value) {
+        layout.put(buffer, 0, semantic, 0, value);
+        return layout.get(buffer, 0, semantic, 0);
+    }
+}
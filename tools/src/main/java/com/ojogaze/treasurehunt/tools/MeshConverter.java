@@ -0,0 +1,242 @@
+package com.ojogaze.treasurehunt.tools;
+
+import com.ojogaze.treasurehunt.oogles20.HalfFloat;
+import com.ojogaze.treasurehunt.oogles20.ObjParser;
+import com.ojogaze.treasurehunt.oogles20.VertexLayout;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts Wavefront OBJ meshes into the binary mesh format read by
+ * {@code com.ojogaze.treasurehunt.oogles20.Mesh}.
+ * <p>
+ * <p>The output is a little endian header followed by interleaved vertex data and triangle list
+ * indices that can be handed to GL as is:
+ * <pre>
+ *   int   magic ("OMSH")
+ *   short version
+ *   short attribute count
+ *   int   vertex count
+ *   int   stride in bytes
+ *   int   index count
+ *   attribute count times:
+ *     byte  semantic (0 position, 1 normal, 2 color, 3 texture coordinates)
+ *     byte  components
+ *     byte  normalized (0 or 1)
+ *     byte  reserved
+ *     short GL type
+ *     short offset in bytes
+ *   vertex count times stride bytes of vertex data
+ *   index count times unsigned short vertex index
+ * </pre>
+ * <p>Vertices are packed by the app's {@code VertexLayout}, so each attribute starts on a 4 byte
+ * boundary. Faces are triangulated, and face corners with the same position, normal and texture
+ * coordinates share a vertex. Vertex colors use the common "v x y z r g b [a]" extension. Colors
+ * and texture coordinates are only written if the OBJ has them.
+ * <p>
+ * <p>Attributes can be packed into smaller types to save vertex fetch bandwidth: half float
+ * positions (OES_vertex_half_float, converted back to float at load time on GPUs without it),
+ * normalized byte or short normals, normalized byte colors and half float texture coordinates.
+ * <p>
+ * <p>Usage: MeshConverter [--positions=float|half] [--normals=float|short|byte]
+ * [--colors=float|byte] [--texcoords=float|half] input.obj|inputDir outputDir
+ */
+public class MeshConverter {
+    static final int MAGIC = 'O' | 'M' << 8 | 'S' << 16 | 'H' << 24;
+    static final short VERSION = 2;
+
+    // Values from GLES20, the tool does not link against Android.
+    static final int GL_BYTE = 0x1400;
+    static final int GL_UNSIGNED_BYTE = 0x1401;
+    static final int GL_SHORT = 0x1402;
+    static final int GL_FLOAT = 0x1406;
+    static final int GL_HALF_FLOAT_OES = 0x8D61;
+
+    static final int HEADER_SIZE = 20;
+    static final int ATTRIBUTE_SIZE = 8;
+
+    public static final String EXTENSION = ".mesh";
+
+    private final int positionType;
+    private final int normalType;
+    private final int colorType;
+    private final int texCoordType;
+
+    public MeshConverter(int positionType, int normalType, int colorType, int texCoordType) {
+        this.positionType = positionType;
+        this.normalType = normalType;
+        this.colorType = colorType;
+        this.texCoordType = texCoordType;
+    }
+
+    public static void main(String args[]) throws IOException {
+        int positionType = GL_FLOAT;
+        int normalType = GL_FLOAT;
+        int colorType = GL_UNSIGNED_BYTE;
+        int texCoordType = GL_FLOAT;
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--positions=")) {
+                positionType = type(arg, GL_FLOAT, GL_HALF_FLOAT_OES);
+            } else if (arg.startsWith("--normals=")) {
+                normalType = type(arg, GL_FLOAT, GL_SHORT, GL_BYTE);
+            } else if (arg.startsWith("--colors=")) {
+                colorType = type(arg, GL_FLOAT, GL_UNSIGNED_BYTE);
+            } else if (arg.startsWith("--texcoords=")) {
+                texCoordType = type(arg, GL_FLOAT, GL_HALF_FLOAT_OES);
+            } else if (arg.startsWith("--")) {
+                usage("Unknown option " + arg);
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (paths.size() != 2) {
+            usage("Expected input and output paths");
+        }
+
+        MeshConverter converter =
+                new MeshConverter(positionType, normalType, colorType, texCoordType);
+        File input = new File(paths.get(0));
+        File outputDir = new File(paths.get(1));
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Could not create " + outputDir);
+        }
+        File inputs[] = input.isDirectory() ? input.listFiles() : new File[] {input};
+        for (File file : inputs) {
+            if (file.getName().endsWith(".obj")) {
+                String name = file.getName().replaceAll("\\.obj$", EXTENSION);
+                File output = new File(outputDir, name);
+                int stride = converter.convert(file, output);
+                System.out.println(String.format("%s -> %s, %d bytes per vertex",
+                        file, output, stride));
+            }
+        }
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: MeshConverter [--positions=float|half] "
+                + "[--normals=float|short|byte] [--colors=float|byte] "
+                + "[--texcoords=float|half] input.obj|inputDir outputDir");
+        System.exit(1);
+    }
+
+    private static int type(String arg, int... allowed) {
+        String name = arg.substring(arg.indexOf('=') + 1);
+        int type = name.equals("float") ? GL_FLOAT : name.equals("half") ? GL_HALF_FLOAT_OES
+                : name.equals("short") ? GL_SHORT
+                : name.equals("byte") ? (arg.startsWith("--colors") ? GL_UNSIGNED_BYTE : GL_BYTE)
+                : 0;
+        for (int allowedType : allowed) {
+            if (type == allowedType) {
+                return type;
+            }
+        }
+        usage("Unsupported type in " + arg);
+        return 0;
+    }
+
+    /**
+     * @return Bytes per vertex in the converted mesh.
+     */
+    public int convert(File input, File output) throws IOException {
+        ObjParser mesh = ObjParser.parse(input.getPath(), new FileInputStream(input));
+        ByteBuffer buffer = write(mesh);
+        FileOutputStream out = new FileOutputStream(output);
+        try {
+            out.getChannel().write(buffer);
+        } finally {
+            out.close();
+        }
+        return buffer.getInt(12);
+    }
+
+    ByteBuffer write(ObjParser mesh) {
+        VertexLayout layout = new VertexLayout()
+                .add(VertexLayout.POSITION, 3, positionType, isNormalized(positionType))
+                .add(VertexLayout.NORMAL, 3, normalType, isNormalized(normalType));
+        if (mesh.hasColors()) {
+            layout.add(VertexLayout.COLOR, 4, colorType, isNormalized(colorType));
+        }
+        if (mesh.hasTexCoords()) {
+            layout.add(VertexLayout.TEXCOORD, 2, texCoordType, isNormalized(texCoordType));
+        }
+        List<VertexLayout.Attribute> attributes = new ArrayList<>();
+        for (int semantic = VertexLayout.POSITION; semantic <= VertexLayout.TEXCOORD;
+             semantic++) {
+            if (layout.get(semantic) != null) {
+                attributes.add(layout.get(semantic));
+            }
+        }
+        int stride = layout.getStride();
+
+        int vertexCount = mesh.getVertexCount();
+        int indexCount = mesh.getIndexCount();
+        if (vertexCount > 0xFFFF) {
+            throw new IllegalArgumentException("Too many vertices for short indices");
+        }
+        int dataOffset = HEADER_SIZE + attributes.size() * ATTRIBUTE_SIZE;
+        int indexOffset = dataOffset + vertexCount * stride;
+
+        ByteBuffer buffer = ByteBuffer.allocate(indexOffset + indexCount * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) attributes.size());
+        buffer.putInt(vertexCount);
+        buffer.putInt(stride);
+        buffer.putInt(indexCount);
+        for (VertexLayout.Attribute attribute : attributes) {
+            buffer.put((byte) attribute.semantic);
+            buffer.put((byte) attribute.size);
+            buffer.put((byte) (attribute.normalized ? 1 : 0));
+            buffer.put((byte) 0);
+            buffer.putShort((short) attribute.type);
+            buffer.putShort((short) attribute.offset);
+        }
+
+        buffer.position(dataOffset);
+        ByteBuffer vertices = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < vertexCount; i++) {
+            for (VertexLayout.Attribute attribute : attributes) {
+                float values[] = attribute.semantic == VertexLayout.POSITION ? mesh.getPosition(i)
+                        : attribute.semantic == VertexLayout.NORMAL ? mesh.getNormal(i)
+                        : attribute.semantic == VertexLayout.COLOR ? mesh.getColor(i)
+                        : mesh.getTexCoord(i);
+                for (int c = 0; c < attribute.size; c++) {
+                    if (attribute.type == GL_HALF_FLOAT_OES) {
+                        checkHalf(values[c]);
+                    }
+                    layout.put(vertices, i, attribute.semantic, c, values[c]);
+                }
+            }
+        }
+        buffer.position(indexOffset);
+        for (int i = 0; i < indexCount; i++) {
+            buffer.putShort((short) mesh.getIndex(i));
+        }
+        buffer.position(0);
+        return buffer;
+    }
+
+    /**
+     * Integer normals and colors are always stored normalized.
+     */
+    private static boolean isNormalized(int type) {
+        return type != GL_FLOAT && type != GL_HALF_FLOAT_OES;
+    }
+
+    private static void checkHalf(float value) {
+        if (Float.isInfinite(HalfFloat.toFloat(HalfFloat.toHalf(value)))
+                && !Float.isInfinite(value)) {
+            throw new IllegalArgumentException(value + " is too large for a half float");
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.ojogaze.treasurehunt.tools;
+
+import com.ojogaze.treasurehunt.SessionLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Decodes session logs written by {@code com.ojogaze.treasurehunt.SessionRecorder} into tab
+ * separated text, one line per record with the time in milliseconds since the session started.
+ * <p>
+ * <p>Usage: SessionLogDecoder session.ojolog [more.ojolog ...]
+ */
+public class SessionLogDecoder {
+    public static void main(String args[]) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: SessionLogDecoder session.ojolog [more.ojolog ...]");
+            System.exit(1);
+        }
+        for (String path : args) {
+            decode(new File(path), System.out);
+        }
+    }
+
+    public static void decode(final File file, final PrintStream out) throws IOException {
+        ByteBuffer buffer;
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            stream.close();
+        }
+
+        SessionLog.read(file.toString(), buffer, new SessionLog.Visitor() {
+            private long startNanos;
+
+            @Override
+            public void onStart(long startMillis, long startNanos) {
+                this.startNanos = startNanos;
+                out.println("# " + file + " started " + new SimpleDateFormat(
+                        "yyyy-MM-dd HH:mm:ss.SSS", Locale.US).format(new Date(startMillis)));
+                out.println("millis\ttype\tvalues");
+            }
+
+            @Override
+            public void onHeadPose(long nanos, float x, float y, float z, float w) {
+                print(nanos, "head", String.format(Locale.US, "%.5f\t%.5f\t%.5f\t%.5f",
+                        x, y, z, w));
+            }
+
+            @Override
+            public void onGesture(long nanos, String gesture, int eventCount) {
+                print(nanos, "gesture", (gesture != null ? gesture : "unknown") + "\t"
+                        + eventCount);
+            }
+
+            @Override
+            public void onCalibration(long nanos, int amplitude) {
+                print(nanos, "calibration", Integer.toString(amplitude));
+            }
+
+            @Override
+            public void onFrame(long nanos, int frameNanos, int scanoutLeadNanos) {
+                print(nanos, "frame", String.format(Locale.US, "%.3f\t%.3f", frameNanos / 1e6,
+                        scanoutLeadNanos / 1e6));
+            }
+
+            @Override
+            public void onDropped(long nanos, int count) {
+                print(nanos, "dropped", Integer.toString(count));
+            }
+
+            private void print(long nanos, String type, String values) {
+                out.println(String.format(Locale.US, "%.3f\t%s\t%s", (nanos - startNanos) / 1e6,
+                        type, values));
+            }
+        });
+    }
+}